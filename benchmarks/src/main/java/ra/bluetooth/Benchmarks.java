@@ -0,0 +1,26 @@
+package ra.bluetooth;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Runs every benchmark with the gc profiler so allocation rates are reported alongside throughput.
+ * With arguments it behaves like the standard JMH main.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        if(args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .include("ra\\.bluetooth\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
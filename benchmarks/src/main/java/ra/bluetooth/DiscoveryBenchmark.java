@@ -0,0 +1,146 @@
+package ra.bluetooth;
+
+import org.openjdk.jmh.annotations.*;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.tasks.TaskRunner;
+
+import javax.bluetooth.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovery callbacks with thousands of synthetic devices in range.
+ *
+ * Every device has a cached SDP result, half with a service and half without, so a discovered device takes the
+ * path a busy neighborhood takes between cache expiries, and found services are those of a device already known,
+ * as repeat searches find. processDevice and processServices measure the work the discovery event workers do for
+ * each. deviceDiscovered and servicesDiscovered measure the time a stack callback thread is held, which is only
+ * publishing that work to the workers; events they cannot keep up with are dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    // Held so the level is not lost when the logger is collected
+    private static final Logger RA_LOG = Logger.getLogger("ra.bluetooth");
+
+    @Param({"1000", "10000"})
+    public int deviceCount;
+
+    private File storeDir;
+    private BluetoothService service;
+    private TaskRunner taskRunner;
+    private BluetoothPeerDiscovery discovery;
+    private BluetoothStack.Device[] devices;
+    private List<BluetoothStack.Service> records;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        // Per callback info logging would be all that is measured
+        RA_LOG.setLevel(Level.WARNING);
+        storeDir = Files.createTempDirectory("discovery-benchmark").toFile();
+
+        SimulatedAir air = new SimulatedAir(0, 0, 672, 0.0, 0, 0, 1);
+        service = new BluetoothService();
+        service.stack = new SimulatedBluetoothStack(air, air.nextAddress(), "benchmark", 64, 1000);
+        service.devices = new DeviceRegistry<>(deviceCount * 2, 0);
+        service.peersOfPeers = new DeviceRegistry<>(deviceCount * 2, 0);
+        service.peerStore = new PeerStore(new File(storeDir, "peers.log"), 10 * deviceCount);
+        service.peerStore.load();
+        service.serviceRecordCache = new ServiceRecordCache(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, service.peerStore);
+        service.serviceSearchScheduler = new ServiceSearchScheduler(service.stack, 64, 1, 0,
+                new int[]{0x0100, 0x5555}, new UUID[]{ServiceClasses.getUUID(ServiceClasses.OBEX_OBJECT_PUSH)});
+        service.discoveryEvents = new DiscoveryEvents(2, 1024, service.metrics);
+        service.circuitBreakers = new CircuitBreakers(3, 5 * 1000L, 5 * 60 * 1000L, deviceCount * 2, service.metrics);
+        taskRunner = new TaskRunner(1, 1);
+        discovery = new BluetoothPeerDiscovery(service, taskRunner);
+
+        devices = new BluetoothStack.Device[deviceCount];
+        for(int i=0; i<deviceCount; i++) {
+            String address = DeviceRegistry.unpack(0x001122000000L + i);
+            devices[i] = new SimulatedBluetoothStack.SimulatedDevice(address, "device-"+i, 0x200);
+            if(i % 2 == 0) {
+                service.serviceRecordCache.put(address, serviceURL(address), "1M5", null);
+            } else {
+                service.serviceRecordCache.putNoService(address);
+            }
+        }
+        records = Collections.<BluetoothStack.Service>singletonList(new BluetoothStack.Service() {
+            @Override
+            public String getConnectionURL() {
+                return serviceURL(devices[0].getBluetoothAddress());
+            }
+
+            @Override
+            public Object getAttributeValue(int attrID) {
+                return attrID == 0x0100 ? "1M5" : null;
+            }
+        });
+    }
+
+    private static String serviceURL(String address) {
+        return "btgoep://" + address + ":12;authenticate=false;encrypt=false;master=false";
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.discoveryEvents.shutdown();
+        service.serviceSearchScheduler.shutdown();
+        ((SimulatedBluetoothStack)service.stack).shutdown();
+        service.peerStore.close();
+        for(File f : storeDir.listFiles()) {
+            f.delete();
+        }
+        storeDir.delete();
+    }
+
+    private BluetoothStack.Device nextDevice() {
+        BluetoothStack.Device device = devices[next];
+        next = (next + 1) % devices.length;
+        return device;
+    }
+
+    private BluetoothPeerDiscovery searchListener() {
+        BluetoothStack.Device device = devices[0];
+        NetworkPeer peer = new NetworkPeer(Network.Bluetooth);
+        peer.getDid().getPublicKey().setAddress(device.getBluetoothAddress());
+        return new BluetoothPeerDiscovery(service, taskRunner, device, peer);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void processDevice() {
+        discovery.processDevice(nextDevice());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void processServices() {
+        searchListener().processServices(1, records);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void deviceDiscovered() {
+        discovery.deviceDiscovered(nextDevice());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void servicesDiscovered() {
+        searchListener().servicesDiscovered(1, records);
+    }
+}
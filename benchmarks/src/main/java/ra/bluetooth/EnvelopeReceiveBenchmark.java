@@ -0,0 +1,132 @@
+package ra.bluetooth;
+
+import org.openjdk.jmh.annotations.*;
+import ra.common.Envelope;
+
+import javax.obex.HeaderSet;
+import javax.obex.Operation;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Inbound decode done by the request handler's onPut and onGet: bulk read of the body into a pooled buffer,
+ * inflating if compressed, then decoding the envelopes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeReceiveBenchmark {
+
+    // Names rather than the enums, which are not visible to the JMH generated code
+    @Param({"JSON", "BINARY"})
+    public String wireFormat;
+
+    @Param({"NONE", "DEFLATE"})
+    public String bodyCompression;
+
+    // Envelopes per PUT; JSON only carries one
+    @Param({"1", "16"})
+    public int batch;
+
+    private final BufferPool bufferPool = new BufferPool(4 * 1024, 1024 * 1024, 16);
+    private WireFormat format;
+    private Compression compression;
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        format = WireFormat.valueOf(wireFormat);
+        compression = Compression.valueOf(bodyCompression);
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addContent(EnvelopeSendBenchmark.samplePeers(20));
+        if(format == WireFormat.JSON || batch == 1) {
+            body = format.encode(envelope);
+        } else {
+            List<byte[]> frames = new ArrayList<>(batch);
+            for(int i=0; i<batch; i++) {
+                frames.add(EnvelopeCodec.encode(envelope));
+            }
+            body = EnvelopeCodec.encodeBatch(frames);
+        }
+        if(compression != Compression.NONE) {
+            body = compression.compress(body, Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+    @Benchmark
+    public List<Envelope> readEnvelopes() throws IOException {
+        return BluetoothSession.readEnvelopes(bufferPool, new BodyOperation(body), format, compression, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Server side of a PUT carrying the body, as the request handler sees it.
+     */
+    private static final class BodyOperation implements Operation {
+
+        private final byte[] body;
+
+        private BodyOperation(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public void abort() {}
+
+        @Override
+        public HeaderSet getReceivedHeaders() {
+            return new SimulatedObex.Headers();
+        }
+
+        @Override
+        public void sendHeaders(HeaderSet headers) {}
+
+        @Override
+        public int getResponseCode() {
+            return -1;
+        }
+
+        @Override
+        public String getType() {
+            return null;
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getLength() {
+            return body.length;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public DataInputStream openDataInputStream() {
+            return new DataInputStream(openInputStream());
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public DataOutputStream openDataOutputStream() {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,66 @@
+package ra.bluetooth;
+
+import org.openjdk.jmh.annotations.*;
+import ra.common.Envelope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Encoding work done by BluetoothSession.send before the body reaches the link:
+ * wire format encoding and, above the threshold, Deflate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeSendBenchmark {
+
+    // Names rather than the enums, which are not visible to the JMH generated code
+    @Param({"JSON", "BINARY"})
+    public String wireFormat;
+
+    // Peers carried, as in a NetOpRes
+    @Param({"1", "50"})
+    public int peers;
+
+    private WireFormat format;
+    private Envelope envelope;
+
+    @Setup
+    public void setup() {
+        format = WireFormat.valueOf(wireFormat);
+        envelope = Envelope.documentFactory();
+        envelope.addContent(samplePeers(peers));
+    }
+
+    static List<Map<String, Object>> samplePeers(int count) {
+        List<Map<String, Object>> peers = new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            Map<String, Object> peer = new HashMap<>();
+            peer.put("network", "Bluetooth");
+            peer.put("address", DeviceRegistry.unpack(0x001122000000L + i));
+            peer.put("serviceURL", "btgoep://" + DeviceRegistry.unpack(0x001122000000L + i) + ":12;authenticate=false;encrypt=false;master=false");
+            peer.put("serviceName", "1M5");
+            peer.put("majorDeviceClass", 0x200);
+            peers.add(peer);
+        }
+        return peers;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return format.encode(envelope);
+    }
+
+    @Benchmark
+    public byte[] encodeAndCompress() {
+        return Compression.DEFLATE.compress(format.encode(envelope), Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -0,0 +1,60 @@
+package ra.bluetooth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups on the send path: resolving a peer's address to its service URL in establishSession
+ * and the device registry reads made alongside discovery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionLookupBenchmark {
+
+    @Param({"1000", "10000"})
+    public int deviceCount;
+
+    private DeviceRegistry<String> registry;
+    private ServiceRecordCache serviceRecordCache;
+    private String[] addresses;
+
+    @Setup
+    public void setup() {
+        registry = new DeviceRegistry<>(deviceCount * 2, 0);
+        serviceRecordCache = new ServiceRecordCache(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, null);
+        addresses = new String[deviceCount];
+        for(int i=0; i<deviceCount; i++) {
+            addresses[i] = DeviceRegistry.unpack(0x001122000000L + i);
+            registry.put(addresses[i], "device-"+i);
+            serviceRecordCache.put(addresses[i], "btgoep://" + addresses[i] + ":12", "1M5", null);
+        }
+    }
+
+    private String randomAddress() {
+        return addresses[ThreadLocalRandom.current().nextInt(addresses.length)];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String registryGet() {
+        return registry.get(randomAddress());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String serviceURL() {
+        ServiceRecordCache.Entry entry = serviceRecordCache.get(randomAddress());
+        return entry == null ? null : entry.serviceURL;
+    }
+
+    @Benchmark
+    public long packAddress() {
+        return DeviceRegistry.pack(randomAddress());
+    }
+}
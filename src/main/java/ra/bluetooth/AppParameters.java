@@ -0,0 +1,142 @@
+package ra.bluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tag-length-value entries carried in the OBEX APPLICATION_PARAMETER header.
+ *
+ * Each entry is a one byte tag, a one byte length and up to 255 bytes of value.
+ * Unknown tags are kept but ignored so peers can add parameters without breaking older nodes.
+ */
+final class AppParameters {
+
+    /** Compression applied to the body of this operation; one byte {@link Compression} id. */
+    static final byte COMPRESSION = 0x01;
+    /** Bitmask of {@link Compression} ids offered on CONNECT and accepted in the reply. */
+    static final byte SUPPORTED_COMPRESSION = 0x02;
+    /** Offered on CONNECT and echoed in the reply when the peer reassembles chunked transfers; one byte, 1. */
+    static final byte SUPPORTED_CHUNKING = 0x03;
+    /** Sender chosen id of a chunked transfer, unique per sender; eight bytes. */
+    static final byte TRANSFER_ID = 0x04;
+    /** Length of the whole body of a chunked transfer; four bytes. */
+    static final byte TRANSFER_LENGTH = 0x05;
+    /** Offset of this chunk in the body, doubling as its sequence number; four bytes. */
+    static final byte CHUNK_OFFSET = 0x06;
+    /** Eight byte hashes of the ids of the envelopes in the body, when they fit; lets receivers skip duplicates undecoded. */
+    static final byte ENVELOPE_IDS = 0x07;
+    /** Largest chunk the peer takes in one PUT, in the reply to CONNECT when chunking is accepted; four bytes. */
+    static final byte MAX_CHUNK_SIZE = 0x08;
+    /** Offered on CONNECT and echoed in the reply when the peer takes peer lists as {@link PeerExchange} deltas; one byte, 1. */
+    static final byte SUPPORTED_PEER_DELTA = 0x09;
+
+    private final Map<Byte, byte[]> entries = new LinkedHashMap<>();
+
+    AppParameters put(byte tag, byte[] value) {
+        if(value.length > 255) {
+            throw new IllegalArgumentException("Application parameter value too long: "+value.length);
+        }
+        entries.put(tag, value);
+        return this;
+    }
+
+    AppParameters putByte(byte tag, int value) {
+        return put(tag, new byte[]{(byte)value});
+    }
+
+    AppParameters putInt(byte tag, int value) {
+        return put(tag, new byte[]{(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value});
+    }
+
+    AppParameters putLong(byte tag, long value) {
+        byte[] b = new byte[8];
+        for(int i=0; i<8; i++) {
+            b[i] = (byte)(value >>> (56 - 8 * i));
+        }
+        return put(tag, b);
+    }
+
+    boolean contains(byte tag) {
+        return entries.containsKey(tag);
+    }
+
+    byte[] get(byte tag) {
+        return entries.get(tag);
+    }
+
+    int getByte(byte tag, int defaultValue) {
+        byte[] v = entries.get(tag);
+        return v == null || v.length < 1 ? defaultValue : v[0] & 0xFF;
+    }
+
+    int getInt(byte tag, int defaultValue) {
+        byte[] v = entries.get(tag);
+        if(v == null || v.length < 4) {
+            return defaultValue;
+        }
+        return (v[0] & 0xFF) << 24 | (v[1] & 0xFF) << 16 | (v[2] & 0xFF) << 8 | (v[3] & 0xFF);
+    }
+
+    long getLong(byte tag, long defaultValue) {
+        byte[] v = entries.get(tag);
+        if(v == null || v.length < 8) {
+            return defaultValue;
+        }
+        long l = 0;
+        for(int i=0; i<8; i++) {
+            l = (l << 8) | (v[i] & 0xFF);
+        }
+        return l;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(Map.Entry<Byte, byte[]> e : entries.entrySet()) {
+            out.write(e.getKey());
+            out.write(e.getValue().length);
+            out.write(e.getValue(), 0, e.getValue().length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parse the header value, stopping at the first truncated entry.
+     * @param header APPLICATION_PARAMETER value; may be null
+     */
+    static AppParameters parse(byte[] header) {
+        AppParameters params = new AppParameters();
+        if(header == null) {
+            return params;
+        }
+        int pos = 0;
+        while(pos + 2 <= header.length) {
+            byte tag = header[pos];
+            int length = header[pos + 1] & 0xFF;
+            if(pos + 2 + length > header.length) {
+                break;
+            }
+            byte[] value = new byte[length];
+            System.arraycopy(header, pos + 2, value, 0, length);
+            params.entries.put(tag, value);
+            pos += 2 + length;
+        }
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for(Map.Entry<Byte, byte[]> e : entries.entrySet()) {
+            if(sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append("tag=").append(e.getKey()).append("; length=").append(e.getValue().length);
+        }
+        return sb.append("}").toString();
+    }
+}
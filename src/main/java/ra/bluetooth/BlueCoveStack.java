@@ -0,0 +1,208 @@
+package ra.bluetooth;
+
+import javax.bluetooth.*;
+import javax.microedition.io.Connection;
+import javax.microedition.io.Connector;
+import javax.obex.ClientSession;
+import javax.obex.SessionNotifier;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bluetooth stack backed by the JSR-82 implementation BlueCove.
+ */
+final class BlueCoveStack implements BluetoothStack {
+
+    @Override
+    public boolean isPowerOn() {
+        return LocalDevice.isPowerOn();
+    }
+
+    @Override
+    public String getLocalAddress() throws IOException {
+        return LocalDevice.getLocalDevice().getBluetoothAddress();
+    }
+
+    @Override
+    public String getLocalName() throws IOException {
+        return LocalDevice.getLocalDevice().getFriendlyName();
+    }
+
+    @Override
+    public boolean isDiscoverable() throws IOException {
+        return LocalDevice.getLocalDevice().getDiscoverable() != DiscoveryAgent.NOT_DISCOVERABLE;
+    }
+
+    @Override
+    public void setDiscoverable(boolean discoverable) throws IOException {
+        LocalDevice.getLocalDevice().setDiscoverable(discoverable ? DiscoveryAgent.GIAC : DiscoveryAgent.NOT_DISCOVERABLE);
+    }
+
+    @Override
+    public String getProperty(String key) {
+        return LocalDevice.getProperty(key);
+    }
+
+    @Override
+    public List<Device> retrieveCachedDevices() throws IOException {
+        RemoteDevice[] cached = LocalDevice.getLocalDevice().getDiscoveryAgent().retrieveDevices(DiscoveryAgent.CACHED);
+        if(cached == null) {
+            return Collections.emptyList();
+        }
+        List<Device> devices = new ArrayList<>(cached.length);
+        for(RemoteDevice device : cached) {
+            devices.add(new BlueCoveDevice(device, null));
+        }
+        return devices;
+    }
+
+    @Override
+    public boolean startInquiry(Listener listener) throws IOException {
+        return LocalDevice.getLocalDevice().getDiscoveryAgent().startInquiry(DiscoveryAgent.GIAC, new ListenerAdapter(listener));
+    }
+
+    @Override
+    public int searchServices(int[] attrIDs, UUID[] uuids, Device device, Listener listener) throws IOException {
+        return LocalDevice.getLocalDevice().getDiscoveryAgent()
+                .searchServices(attrIDs, uuids, ((BlueCoveDevice)device).device, new ListenerAdapter(listener));
+    }
+
+    @Override
+    public ClientSession openClient(String url) throws IOException {
+        return (ClientSession) Connector.open(url);
+    }
+
+    @Override
+    public SessionNotifier openServer(String url) throws IOException {
+        return (SessionNotifier) Connector.open(url);
+    }
+
+    @Override
+    public String remoteAddress(Connection connection) {
+        try {
+            return RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isOpen(Connection connection) {
+        try {
+            RemoteDevice.getRemoteDevice(connection);
+            return true;
+        } catch (IOException e) {
+            // JSR-82 throws this for a closed connection
+            return false;
+        } catch (IllegalArgumentException e) {
+            // Not a Bluetooth connection, so it cannot tell
+            return true;
+        }
+    }
+
+    private static final class BlueCoveDevice implements Device {
+
+        private final RemoteDevice device;
+        private final DeviceClass deviceClass;
+
+        private BlueCoveDevice(RemoteDevice device, DeviceClass deviceClass) {
+            this.device = device;
+            this.deviceClass = deviceClass;
+        }
+
+        @Override
+        public String getBluetoothAddress() {
+            return device.getBluetoothAddress();
+        }
+
+        @Override
+        public String getFriendlyName(boolean alwaysAsk) throws IOException {
+            return device.getFriendlyName(alwaysAsk);
+        }
+
+        @Override
+        public boolean isAuthenticated() {
+            return device.isAuthenticated();
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return device.isEncrypted();
+        }
+
+        @Override
+        public boolean isTrustedDevice() {
+            return device.isTrustedDevice();
+        }
+
+        @Override
+        public int getMajorDeviceClass() {
+            return deviceClass == null ? 0 : deviceClass.getMajorDeviceClass();
+        }
+
+        @Override
+        public int getMinorDeviceClass() {
+            return deviceClass == null ? 0 : deviceClass.getMinorDeviceClass();
+        }
+
+        @Override
+        public int getServiceClasses() {
+            return deviceClass == null ? 0 : deviceClass.getServiceClasses();
+        }
+    }
+
+    private static final class BlueCoveService implements Service {
+
+        private final ServiceRecord record;
+
+        private BlueCoveService(ServiceRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public String getConnectionURL() {
+            return record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+        }
+
+        @Override
+        public Object getAttributeValue(int attrID) {
+            DataElement value = record.getAttributeValue(attrID);
+            return value == null ? null : value.getValue();
+        }
+    }
+
+    private static final class ListenerAdapter implements DiscoveryListener {
+
+        private final Listener listener;
+
+        private ListenerAdapter(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void deviceDiscovered(RemoteDevice remoteDevice, DeviceClass deviceClass) {
+            listener.deviceDiscovered(new BlueCoveDevice(remoteDevice, deviceClass));
+        }
+
+        @Override
+        public void servicesDiscovered(int transID, ServiceRecord[] serviceRecords) {
+            List<Service> services = new ArrayList<>(serviceRecords.length);
+            for(ServiceRecord record : serviceRecords) {
+                services.add(new BlueCoveService(record));
+            }
+            listener.servicesDiscovered(transID, services);
+        }
+
+        @Override
+        public void serviceSearchCompleted(int transID, int respCode) {
+            listener.serviceSearchCompleted(transID, respCode);
+        }
+
+        @Override
+        public void inquiryCompleted(int discType) {
+            listener.inquiryCompleted(discType);
+        }
+    }
+}
@@ -8,29 +8,40 @@ import ra.common.network.NetworkStatus;
 import ra.common.tasks.BaseTask;
 import ra.common.tasks.TaskRunner;
 
-import javax.bluetooth.*;
+import javax.bluetooth.DiscoveryListener;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
  * Discovers nearby devices, filters them out by RA ID, then makes a NetOp Request for their network knowledge.
  */
-public class BluetoothPeerDiscovery extends BaseTask implements DiscoveryListener {
+public class BluetoothPeerDiscovery extends BaseTask implements BluetoothStack.Listener {
 
     private static final Logger LOG = Logger.getLogger(BluetoothPeerDiscovery.class.getName());
 
     private final Object inquiryCompletedEvent = new Object();
 
     public BluetoothService service;
-    public RemoteDevice remoteDevice;
+    public BluetoothStack.Device remoteDevice;
     public NetworkPeer remotePeer;
+    // Whether a usable service was found by this listener's search
+    private boolean serviceResolved = false;
+    // Whether this listener's services were dropped by the event workers, so not finding one says nothing
+    private volatile boolean servicesDropped = false;
+    // Addresses found by the inquiry in progress and how it ended, for the inquiry backoff
+    private final Set<String> inquiryFound = ConcurrentHashMap.newKeySet();
+    private volatile int inquiryResult = -1;
 
     public BluetoothPeerDiscovery(BluetoothService service, TaskRunner taskRunner) {
         super(BluetoothPeerDiscovery.class.getSimpleName(), taskRunner);
         this.service = service;
     }
 
-    public BluetoothPeerDiscovery(BluetoothService service, TaskRunner taskRunner, RemoteDevice remoteDevice, NetworkPeer remotePeer) {
+    public BluetoothPeerDiscovery(BluetoothService service, TaskRunner taskRunner, BluetoothStack.Device remoteDevice, NetworkPeer remotePeer) {
         this(service, taskRunner);
         this.remoteDevice = remoteDevice;
         this.remotePeer = remotePeer;
@@ -39,29 +50,35 @@ public class BluetoothPeerDiscovery extends BaseTask implements DiscoveryListene
     @Override
     public Boolean execute() {
         running = true;
+        service.serviceRecordCache.purgeExpired();
+        service.devices.evictExpired();
+        service.evictExpiredPeersOfPeers();
         // Update service cache with bluetooth radio cache
         try {
-            RemoteDevice[] devices = LocalDevice.getLocalDevice().getDiscoveryAgent().retrieveDevices(DiscoveryAgent.CACHED);
-            if(devices!=null) {
-                synchronized (service.devices) {
-                    for (RemoteDevice device : devices) {
-                        service.devices.put(device.getBluetoothAddress(), device);
-                    }
-                }
+            for (BluetoothStack.Device device : service.stack.retrieveCachedDevices()) {
+                service.devices.put(device.getBluetoothAddress(), device);
             }
-        } catch (BluetoothStateException e) {
+        } catch (IOException e) {
             LOG.warning(e.getLocalizedMessage());
             return false;
         }
         try {
+            long start = System.nanoTime();
             synchronized (inquiryCompletedEvent) {
-                boolean inquiring = LocalDevice.getLocalDevice().getDiscoveryAgent().startInquiry(DiscoveryAgent.GIAC, this);
+                inquiryFound.clear();
+                inquiryResult = -1;
+                boolean inquiring = service.stack.startInquiry(this);
                 if (inquiring) {
                     LOG.info("wait for device inquiry to complete...");
                     inquiryCompletedEvent.wait();
                 }
             }
-        } catch (BluetoothStateException e) {
+            if(inquiryResult == DiscoveryListener.INQUIRY_COMPLETED) {
+                service.metrics.record(MetricsRegistry.INQUIRY_TIME, (System.nanoTime() - start) / 1000000);
+                service.metrics.record(MetricsRegistry.INQUIRY_DEVICES, inquiryFound.size());
+                setPeriodicity(service.inquiryBackoff.inquiryCompleted(inquiryFound));
+            }
+        } catch (IOException e) {
             if("Bluetooth Device is not available".equals(e.getLocalizedMessage())) {
                 LOG.warning("PLease turn on the bluetooth radio.");
             } else {
@@ -78,62 +95,67 @@ public class BluetoothPeerDiscovery extends BaseTask implements DiscoveryListene
     /**
      * Inbound separate thread from Bluecove Bluez from starting inquiry in above execute()
      * @param remoteDevice
-     * @param deviceClass
      */
     @Override
-    public void deviceDiscovered(RemoteDevice remoteDevice, DeviceClass deviceClass) {
-        String msg = "Device " + remoteDevice.getBluetoothAddress() + " discovered.";
-        NetworkPeer peer = service.peersOfPeers.get(remoteDevice.getBluetoothAddress());
-        try {
-            if(peer==null) {
-                peer = new NetworkPeer(Network.Bluetooth, remoteDevice.getFriendlyName(true), "1234");
-                PublicKey pk = peer.getDid().getPublicKey();
-                pk.setAddress(remoteDevice.getBluetoothAddress());
-                pk.addAttribute("isAuthenticated", remoteDevice.isAuthenticated());
-                pk.addAttribute("isEncrypted", remoteDevice.isEncrypted());
-                pk.addAttribute("isTrustedDevice", remoteDevice.isTrustedDevice());
-                pk.addAttribute("majorDeviceClass", deviceClass.getMajorDeviceClass());
-                pk.addAttribute("minorDeviceClass", deviceClass.getMinorDeviceClass());
-                pk.addAttribute("serviceClasses", deviceClass.getServiceClasses());
-                service.devices.put(remoteDevice.getBluetoothAddress(), remoteDevice);
-            } else {
-                // TODO: Update peer
-
-            }
-            service.getNetworkState().networkStatus = NetworkStatus.CONNECTED;
-
-            // Now request its services
-            UUID obexObjPush = ServiceClasses.getUUID(ServiceClasses.OBEX_OBJECT_PUSH);
-//        if ((properties != null) && (properties.size() > 0)) {
-//            objPush = new UUID(args[0], false);
-//        }
-//        UUID obexFileXfer = ServiceClasses.getUUID(ServiceClasses.OBEX_FILE_TRANSFER);
-
-            UUID[] searchUuidSet = new UUID[]{obexObjPush};
-//        UUID[] searchUuidSet = new UUID[] { obexObjPush, obexFileXfer };
+    public void deviceDiscovered(BluetoothStack.Device remoteDevice) {
+        inquiryFound.add(remoteDevice.getBluetoothAddress());
+        service.discoveryEvents.publish(remoteDevice.getBluetoothAddress(), () -> processDevice(remoteDevice));
+    }
 
-            int[] attrIDs = new int[]{
-                    0x0100 // Service name
-            };
+    void processDevice(BluetoothStack.Device remoteDevice) {
+        String address = remoteDevice.getBluetoothAddress();
+        String msg = "Device " + address + " discovered.";
+        NetworkPeer peer = service.peersOfPeers.get(address);
+        service.devices.put(address, remoteDevice);
+        // Name requests are round trips over the air; start with the address and fill the name in when it arrives
+        NetworkPeer discovered = new NetworkPeer(Network.Bluetooth);
+        String name = service.friendlyNames.resolve(remoteDevice, resolved -> {
+            discovered.getDid().setUsername(resolved);
+            service.peerStore.saveDevice(address, Collections.<String, Object>singletonMap(PeerStore.NAME, resolved));
+        });
+        discovered.getDid().setUsername(name != null ? name : address);
+        discovered.getDid().getPublicKey().setAddress(address);
+        if(peer==null) {
+            peer = new NetworkPeer(Network.Bluetooth, discovered.getDid().getUsername(), "1234");
+            PublicKey pk = peer.getDid().getPublicKey();
+            pk.setAddress(address);
+            pk.addAttribute("isAuthenticated", remoteDevice.isAuthenticated());
+            pk.addAttribute("isEncrypted", remoteDevice.isEncrypted());
+            pk.addAttribute("isTrustedDevice", remoteDevice.isTrustedDevice());
+            pk.addAttribute("majorDeviceClass", remoteDevice.getMajorDeviceClass());
+            pk.addAttribute("minorDeviceClass", remoteDevice.getMinorDeviceClass());
+            pk.addAttribute("serviceClasses", remoteDevice.getServiceClasses());
+        } else {
+            // TODO: Update peer
 
-            peer = new NetworkPeer(Network.Bluetooth);
-            peer.getDid().setUsername(remoteDevice.getFriendlyName(true));
-            peer.getDid().getPublicKey().setAddress(remoteDevice.getBluetoothAddress());
-            LOG.info("Searching services on " + peer.getDid().getUsername() + " address=" + peer.getDid().getPublicKey().getAddress());
-            LocalDevice.getLocalDevice()
-                    .getDiscoveryAgent()
-                    .searchServices(attrIDs, searchUuidSet, remoteDevice, new BluetoothPeerDiscovery(service, taskRunner, remoteDevice, peer));
+        }
+        service.setRadioStatus(NetworkStatus.CONNECTED);
 
+        // Now request its services
+        if(service.peersOfPeers.contains(address)) {
+            service.serviceSearchScheduler.markRaPeer(address);
+        }
+        ServiceRecordCache.Entry cached = service.serviceRecordCache.get(address);
+        if(cached != null) {
+            LOG.info("Using cached service record for address=" + address);
+            if(cached.hasService()) {
+                new BluetoothPeerDiscovery(service, taskRunner, remoteDevice, discovered)
+                        .serviceFound(cached.serviceURL, cached.serviceName, cached.raId);
+            }
             lastCompletionTime = System.currentTimeMillis();
-
-        } catch (IOException e) {
-            LOG.warning(e.getLocalizedMessage());
+            LOG.info(msg);
+            return;
         }
+        LOG.info("Queueing service search on " + discovered.getDid().getUsername() + " address=" + address);
+        service.serviceSearchScheduler.submit(remoteDevice, new BluetoothPeerDiscovery(service, taskRunner, remoteDevice, discovered));
+
+        lastCompletionTime = System.currentTimeMillis();
         LOG.info(msg);
     }
 
     @Override
     public void inquiryCompleted(int discType) {
+        inquiryResult = discType;
         switch (discType) {
             case DiscoveryListener.INQUIRY_COMPLETED : {
                 LOG.info("Bluetooth inquiry completed.");
@@ -157,72 +179,105 @@ public class BluetoothPeerDiscovery extends BaseTask implements DiscoveryListene
     }
 
     @Override
-    public void servicesDiscovered(int transID, ServiceRecord[] serviceRecords) {
-        LOG.info(serviceRecords.length+" Services returned for transID: "+transID);
-        for (ServiceRecord serviceRecord : serviceRecords) {
-            String url = serviceRecord.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+    public void servicesDiscovered(int transID, List<BluetoothStack.Service> serviceRecords) {
+        if(!service.discoveryEvents.publish(remoteDevice.getBluetoothAddress(), () -> processServices(transID, serviceRecords))) {
+            servicesDropped = true;
+        }
+    }
+
+    void processServices(int transID, List<BluetoothStack.Service> serviceRecords) {
+        LOG.info(serviceRecords.size()+" Services returned for transID: "+transID);
+        for (BluetoothStack.Service serviceRecord : serviceRecords) {
+            String url = serviceRecord.getConnectionURL();
             if (url == null) {
                 LOG.info("Not a NoAuthN-NoEncrypt service.");
                 continue;
             }
 
-            remotePeer.getDid().getPublicKey().addAttribute("serviceURL", url);
+            Object serviceName = serviceRecord.getAttributeValue(0x0100);
+            Object id = serviceRecord.getAttributeValue(0x5555);
+            String serviceNameStr = serviceName != null ? String.valueOf(serviceName) : null;
+            String idStr = id != null ? String.valueOf(id) : null;
+            service.serviceRecordCache.put(remoteDevice.getBluetoothAddress(), url, serviceNameStr, idStr);
+            serviceFound(url, serviceNameStr, idStr);
+        }
+    }
 
-            DataElement serviceName = serviceRecord.getAttributeValue(0x0100);
-            if (serviceName != null) {
-                LOG.info("service " + serviceName.getValue() + " found " + url);
-                remotePeer.getDid().getPublicKey().addAttribute("serviceName", serviceName);
-            } else {
-                LOG.info("service found " + url);
-            }
-
-            DataElement id = serviceRecord.getAttributeValue(0x5555);
-            if (id != null) {
-                String idStr = (String)id.getValue();
-                LOG.info("RA id found: " + idStr);
-                NetworkPeer remoteSavedPeer = service.lookupRemotePeer(idStr);
-                if(remoteSavedPeer!=null) {
-                    if(!url.equals(remoteSavedPeer.getDid().getPublicKey().getAttribute("serviceURL"))) {
-                        // URL changed
-                        remoteSavedPeer.getDid().getPublicKey().addAttribute("serviceURL", url);
-                    }
+    /**
+     * Update the remote peer with a resolved service, from a search or the cache,
+     * and request its status if it is an RA peer.
+     */
+    private void serviceFound(String url, String serviceName, String idStr) {
+        serviceResolved = true;
+        remotePeer.getDid().getPublicKey().addAttribute("serviceURL", url);
+
+        if (serviceName != null) {
+            LOG.info("service " + serviceName + " found " + url);
+            remotePeer.getDid().getPublicKey().addAttribute("serviceName", serviceName);
+        } else {
+            LOG.info("service found " + url);
+        }
+
+        if (idStr != null) {
+            LOG.info("RA id found: " + idStr);
+            service.serviceSearchScheduler.markRaPeer(remoteDevice.getBluetoothAddress());
+            NetworkPeer remoteSavedPeer = service.lookupRemotePeer(idStr);
+            if(remoteSavedPeer!=null) {
+                if(!url.equals(remoteSavedPeer.getDid().getPublicKey().getAttribute("serviceURL"))) {
+                    // URL changed
+                    remoteSavedPeer.getDid().getPublicKey().addAttribute("serviceURL", url);
                 }
-                remotePeer.setId(idStr);
-                Envelope e = Envelope.documentFactory();
-                e.addExternalRoute(BluetoothService.class.getName(), BluetoothService.OPERATION_PEER_STATUS, service.getNetworkState().localPeer, remotePeer);
-                service.sendOut(e);
             }
+            remotePeer.setId(idStr);
+            if(service.prewarmer != null) {
+                service.prewarmer.discovered(remoteDevice.getBluetoothAddress(), url);
+            }
+            Envelope e = Envelope.documentFactory();
+            e.addExternalRoute(BluetoothService.class.getName(), BluetoothService.OPERATION_PEER_STATUS, service.getNetworkState().localPeer, remotePeer);
+            service.sendOutAsync(e);
         }
     }
 
     @Override
     public void serviceSearchCompleted(int transID, int respCode) {
+        // Free the search slot right away; the rest waits behind this device's services
+        boolean retrying = service.serviceSearchScheduler.completed(remoteDevice.getBluetoothAddress(), respCode);
+        service.metrics.count(MetricsRegistry.SDP_SEARCH, searchOutcome(respCode), 1);
+        service.discoveryEvents.publish(remoteDevice.getBluetoothAddress(), () -> processSearchCompleted(transID, respCode, retrying));
+    }
+
+    private void processSearchCompleted(int transID, int respCode, boolean retrying) {
         LOG.info("transID: "+transID);
         switch(respCode) {
             case DiscoveryListener.SERVICE_SEARCH_COMPLETED : {
-                LOG.info("Bluetooth search completed.");break;
+                LOG.info("Bluetooth search completed.");
+                // It answered, so it is back in range
+                service.circuitBreakers.success(remoteDevice.getBluetoothAddress());
+                if(!serviceResolved && !servicesDropped) {
+                    service.serviceRecordCache.putNoService(remoteDevice.getBluetoothAddress());
+                }
+                break;
             }
             case DiscoveryListener.SERVICE_SEARCH_TERMINATED : {
                 LOG.warning("Bluetooth search terminated.");break;
             }
             case DiscoveryListener.SERVICE_SEARCH_ERROR : {
-                LOG.warning("Bluetooth search errored. Removing device from list.");
-                service.devices.remove(remoteDevice.getBluetoothAddress());
+                if(retrying) {
+                    LOG.warning("Bluetooth search errored. Retrying.");
+                } else {
+                    LOG.warning("Bluetooth search errored. Removing device from list.");
+                    service.devices.remove(remoteDevice.getBluetoothAddress());
+                }
                 break;
             }
             case DiscoveryListener.SERVICE_SEARCH_NO_RECORDS : {
-                try {
-                    LOG.info("Bluetooth search found no records for device (address; "+remoteDevice.getBluetoothAddress()+", name: "+remoteDevice.getFriendlyName(false)+").");
-                } catch (IOException e) {
-                    LOG.info("Bluetooth search found no records for device (address; "+remoteDevice.getBluetoothAddress()+").");
-                }
+                service.serviceRecordCache.putNoService(remoteDevice.getBluetoothAddress());
+                LOG.info("Bluetooth search found no records for device (address; "+remoteDevice.getBluetoothAddress()+", name: "+service.friendlyNames.cached(remoteDevice.getBluetoothAddress())+").");
+                break;
             }
             case DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE : {
-                try {
-                    LOG.info("Bluetooth search device (address; "+remoteDevice.getBluetoothAddress()+", name: "+remoteDevice.getFriendlyName(false)+") not reachable.");
-                } catch (IOException e) {
-                    LOG.info("Bluetooth search device (address; "+remoteDevice.getBluetoothAddress()+") not reachable.");
-                }
+                LOG.info("Bluetooth search device (address; "+remoteDevice.getBluetoothAddress()+", name: "+service.friendlyNames.cached(remoteDevice.getBluetoothAddress())+") not reachable.");
+                service.circuitBreakers.unreachable(remoteDevice.getBluetoothAddress());
                 break;
             }
             default: {
@@ -231,4 +286,15 @@ public class BluetoothPeerDiscovery extends BaseTask implements DiscoveryListene
         }
     }
 
+    static String searchOutcome(int respCode) {
+        switch(respCode) {
+            case DiscoveryListener.SERVICE_SEARCH_COMPLETED : return "completed";
+            case DiscoveryListener.SERVICE_SEARCH_TERMINATED : return "terminated";
+            case DiscoveryListener.SERVICE_SEARCH_ERROR : return "error";
+            case DiscoveryListener.SERVICE_SEARCH_NO_RECORDS : return "noRecords";
+            case DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE : return "notReachable";
+            default: return "code"+respCode;
+        }
+    }
+
 }
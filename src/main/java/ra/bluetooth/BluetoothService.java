@@ -14,14 +14,19 @@ import ra.common.SystemSettings;
 import ra.common.Wait;
 import ra.common.tasks.TaskRunner;
 
-import javax.bluetooth.BluetoothStateException;
-import javax.bluetooth.DiscoveryAgent;
-import javax.bluetooth.LocalDevice;
-import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 import java.util.logging.Logger;
 
 /**
@@ -43,10 +48,51 @@ public final class BluetoothService extends NetworkService {
     private String bluetoothBaseDir;
     private File bluetoothDir;
 
-    final Map<String, RemoteDevice> devices = new HashMap<>();
-    // Peers returned from local peers - may not be accessible directly - provided to build propagating network
-    final Map<String, NetworkPeer> peersOfPeers = new HashMap<>();
+    // Radio, inquiry, SDP and OBEX connections - BlueCove unless configured otherwise
+    BluetoothStack stack;
 
+    DeviceRegistry<BluetoothStack.Device> devices = new DeviceRegistry<>(1024, 30 * 60 * 1000L);
+    // Peers returned from local peers - may not be accessible directly - provided to build propagating network
+    DeviceRegistry<NetworkPeer> peersOfPeers = new DeviceRegistry<>(4096, 24 * 60 * 60 * 1000L);
+
+    // Shared by all inbound request handlers for reading OBEX bodies
+    final BufferPool bufferPool = new BufferPool(4 * 1024, 1024 * 1024, 16);
+    // Largest inbound body taken in one PUT or GET; larger ones are refused unread
+    int maxBodyBytes = 8 * 1024 * 1024;
+
+    // Preferred envelope encoding offered to peers on connect
+    WireFormat wireFormat = WireFormat.BINARY;
+    // Outbound compression - payloads below the threshold are not worth the CPU
+    boolean compressionEnabled = true;
+    int compressionThreshold = 256;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    // Payloads above the chunk size go out in chunks to peers that reassemble them
+    int chunkSize = 32 * 1024;
+    int maxChunkResumes = 5;
+    ChunkReassembler chunkReassembler = new ChunkReassembler(8 * 1024 * 1024, 32 * 1024 * 1024L, 5 * 60 * 1000L);
+    // Ids of recently received envelopes, to drop copies relayed by other neighbors
+    EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(64 * 1024, 10 * 60 * 1000L);
+    // Peer lists last exchanged with each neighbor, so only changes go over the air
+    PeerExchange peerExchange = new PeerExchange(256);
+    // Devices that keep failing are not sent to until their backoff is over
+    CircuitBreakers circuitBreakers;
+
+    ServiceSearchScheduler serviceSearchScheduler;
+    ServiceRecordCache serviceRecordCache;
+    // Devices, resolved services and peers of peers kept across restarts
+    PeerStore peerStore;
+    InquiryBackoff inquiryBackoff;
+    // Remote names, requested off the discovery callbacks
+    FriendlyNameResolver friendlyNames = new FriendlyNameResolver(1024, 24 * 60 * 60 * 1000L, 1);
+    // Discovery callbacks hand their processing to these workers
+    DiscoveryEvents discoveryEvents;
+
+    private PowerMonitor powerMonitor;
+
+    // Read over JMX; bluetooth.metrics.registry may name another registry to report to as well
+    private final DefaultMetricsRegistry defaultMetrics = new DefaultMetricsRegistry();
+    private final BluetoothServiceMetrics mbean = new BluetoothServiceMetrics(defaultMetrics);
+    MetricsRegistry metrics = defaultMetrics;
     private CheckPowerStatus checkPowerStatus;
 
     private boolean discoveryRunning = false;
@@ -56,7 +102,21 @@ public final class BluetoothService extends NetworkService {
 
     private Thread taskRunnerThread;
 
-    private Map<Integer, BluetoothSession> leased = new HashMap<>();
+    private BluetoothSessionPool sessionPool;
+    // Sessions in each connection state; with the radio's status this gives the service-wide status
+    private final int[] sessionStates = new int[BluetoothSession.State.values().length];
+    // Status of the radio itself, from unpause and discovery
+    private NetworkStatus radioStatus = NetworkStatus.DISCONNECTED;
+    // Opens sessions to RA peers ahead of their first envelope; null unless enabled
+    SessionPrewarmer prewarmer;
+    // Accepts the OBEX connections of remote peers; one per service, whatever sessions are open
+    private InboundServer inboundServer;
+    // Envelopes received from peers on their way to the bus
+    InboundQueue inboundQueue;
+    private EvictIdleSessions evictIdleSessions;
+    OutboundQueues outboundQueues;
+    // Longest sendOut waits for the envelope's send before reporting it failed
+    long sendOutTimeoutMs = 60 * 1000L;
 
     public BluetoothService() {
         super();
@@ -74,11 +134,20 @@ public final class BluetoothService extends NetworkService {
         super.handleDocument(envelope);
         Route r = envelope.getRoute();
         if(r instanceof ExternalRoute) {
-            // External request
-            if(!sendOut(envelope)) {
-                envelope.addErrorMessage("Bluetooth Send Out Failed");
-                send(envelope);
-            }
+            // External request - don't hold up the bus while the peer is reached
+            sendOutAsync(envelope).whenComplete((sent, e) -> {
+                if(e instanceof CompletionException) {
+                    e = e.getCause();
+                }
+                if(e instanceof OutboundQueues.DeadLetteredException) {
+                    // Already routed to the dead letter queue
+                    return;
+                }
+                if(e != null || !sent) {
+                    envelope.addErrorMessage("Bluetooth Send Out Failed");
+                    send(envelope);
+                }
+            });
         } else if(r instanceof SimpleRoute) {
             // Internal request
             switch (r.getOperation()) {
@@ -87,59 +156,275 @@ public final class BluetoothService extends NetworkService {
         }
     }
 
-    private NetworkClientSession establishSession(String address, Boolean autoConnect) {
+    /**
+     * Lease a pooled session to the peer, opening and connecting one if needed.
+     * Must be returned with {@link #releaseSession(BluetoothSession, boolean)}.
+     */
+    private BluetoothSession establishSession(NetworkPeer peer) {
+        String address = peer.getDid().getPublicKey().getAddress();
         if(address==null) {
-            address = "default";
+            LOG.warning("Peer has no Bluetooth address.");
+            return null;
         }
-        NetworkClientSession session = sessions.get(address);
-        if(session==null) {
-            if (session.open(address)) {
-                if (autoConnect) {
-                    session.connect();
-                }
-                sessions.put(address, session);
+        String url = (String)peer.getDid().getPublicKey().getAttribute("serviceURL");
+        if(url==null) {
+            // Peer may have come off the bus without its service; use what discovery or the store resolved
+            ServiceRecordCache.Entry cached = serviceRecordCache.get(address);
+            if(cached!=null && cached.hasService()) {
+                url = cached.serviceURL;
             }
         }
-        return session;
+        if(url==null) {
+            url = address;
+        } else if(prewarmer != null) {
+            prewarmer.used(address, url);
+        }
+        return sessionPool.lease(address, url);
+    }
+
+    /**
+     * Set the status of the radio itself, which sessions connected or connecting override.
+     */
+    synchronized void setRadioStatus(NetworkStatus status) {
+        radioStatus = status;
+        updateNetworkStatus();
     }
 
-    private NetworkClientSession establishSession(NetworkPeer peer, Boolean autoConnect) {
-        return establishSession(peer.getDid().getPublicKey().getAddress(), autoConnect);
+    synchronized void sessionStateChanged(BluetoothSession.State from, BluetoothSession.State to) {
+        // Only sessions that got as far as opening a connection are counted
+        if(from != BluetoothSession.State.NEW) {
+            sessionStates[from.ordinal()]--;
+        }
+        if(to != BluetoothSession.State.NEW && to != BluetoothSession.State.CLOSED) {
+            sessionStates[to.ordinal()]++;
+        }
+        updateNetworkStatus();
     }
 
     /**
-     * Sends Envelope to a Bluetooth Peer.
+     * @return sessions in the state; sessions are not counted before they open or after they close
+     */
+    synchronized int sessions(BluetoothSession.State state) {
+        return sessionStates[state.ordinal()];
+    }
+
+    private void updateNetworkStatus() {
+        NetworkStatus status = radioStatus;
+        if(sessionStates[BluetoothSession.State.CONNECTED.ordinal()] > 0) {
+            status = NetworkStatus.CONNECTED;
+        } else if(status != NetworkStatus.CONNECTED) {
+            if(sessionStates[BluetoothSession.State.CONNECTING.ordinal()] > 0) {
+                status = NetworkStatus.CONNECTING;
+            } else if(sessionStates[BluetoothSession.State.OPEN.ordinal()] > 0) {
+                status = NetworkStatus.WARMUP;
+            }
+        }
+        getNetworkState().networkStatus = status;
+    }
+
+    private void releaseSession(BluetoothSession session, boolean healthy) {
+        if(healthy) {
+            sessionPool.release(session);
+        } else {
+            sessionPool.invalidate(session);
+        }
+    }
+
+    /**
+     * Sends Envelope to a Bluetooth Peer, waiting for the result up to the send out timeout.
      * @param envelope Envelope containing data.
-     * @return Boolean was successful
+     * @return Boolean was successful; false if the result did not come within the timeout
      */
     @Override
     public Boolean sendOut(Envelope envelope) {
+        try {
+            return sendOutAsync(envelope).get(sendOutTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warning("No result sending out within "+sendOutTimeoutMs+"ms.");
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Queues Envelope for a Bluetooth Peer on that peer's outbound queue.
+     * @param envelope Envelope containing data.
+     * @return completed with whether the envelope was sent
+     */
+    public CompletableFuture<Boolean> sendOutAsync(Envelope envelope) {
         LOG.info("Sending Packet via Bluetooth...");
         Route r = envelope.getRoute();
         if(!(r instanceof ExternalRoute)) {
             LOG.warning("Not an external route.");
             // TODO: Reply with error code
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         ExternalRoute er = (ExternalRoute)r;
         NetworkPeer toPeer = er.getDestination();
         if (toPeer == null) {
             LOG.warning("No Peer found while sending to Bluetooth.");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         if (!Network.Bluetooth.name().equals(toPeer.getNetwork())) {
             LOG.warning("Not a Bluetooth Request.");
-            return false;
+            return CompletableFuture.completedFuture(false);
+        }
+
+        String address = toPeer.getDid().getPublicKey().getAddress();
+        if(address==null) {
+            LOG.warning("Peer has no Bluetooth address.");
+            return CompletableFuture.completedFuture(false);
+        }
+        if(circuitBreakers.isOpen(address)) {
+            // Fail fast rather than queue behind connects that will time out
+            LOG.info("Circuit to "+address+" open; not sending.");
+            metrics.count(MetricsRegistry.CIRCUIT_REJECTED, 1);
+            return CompletableFuture.completedFuture(false);
         }
 
         LOG.info("Envelope to send: " + envelope.toJSON());
-        return establishSession(toPeer, true).send(envelope);
+        if((envelope.markerPresent(PeerExchange.MARKER_REQUEST) || envelope.markerPresent(PeerExchange.MARKER_RESPONSE))
+                && envelope.getContent() instanceof List) {
+            return sendPeerExchange(address, toPeer, envelope);
+        }
+        return outboundQueues.add(address, toPeer, envelope);
+    }
+
+    /**
+     * Send the peer list of a NetOpReq or NetOpRes as the changes since the last exchange with the peer,
+     * or whole to peers that have not agreed to deltas.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> sendPeerExchange(String address, NetworkPeer toPeer, Envelope envelope) {
+        if(!peerExchange.isSupported(address)) {
+            return outboundQueues.add(address, toPeer, envelope);
+        }
+        List<NetworkPeer> peers = (List<NetworkPeer>)envelope.getContent();
+        PeerExchange.Outgoing delta = peerExchange.outgoing(toPeer.getId() != null ? toPeer.getId() : address, peers);
+        envelope.addContent(delta.content);
+        return outboundQueues.add(address, toPeer, envelope).whenComplete((sent, e) -> {
+            delta.completed(e == null && sent);
+            if(e == null && !sent) {
+                // Failed envelopes go back on the bus as they came
+                envelope.addContent(peers);
+            }
+        });
+    }
+
+    boolean deadLetter(Envelope envelope) {
+        return producer.deadLetter(envelope);
+    }
+
+    /**
+     * Remember the Bluetooth peers a neighbor listed in a NetOpReq or NetOpRes, writing new or changed ones through
+     * to the peer store.
+     * @param peers NetworkPeers, or maps of them as decoded
+     */
+    @SuppressWarnings("unchecked")
+    void peersOfPeersReceived(List<?> peers) {
+        for(Object o : peers) {
+            NetworkPeer peer = o instanceof Map ? PeerExchange.toPeer((Map<String, Object>)o) : o instanceof NetworkPeer ? (NetworkPeer)o : null;
+            if(peer == null || !Network.Bluetooth.name().equals(peer.getNetwork())
+                    || peer.getDid() == null || peer.getDid().getPublicKey() == null) {
+                continue;
+            }
+            String address = peer.getDid().getPublicKey().getAddress();
+            try {
+                peersOfPeers.put(address, peer);
+            } catch (IllegalArgumentException e) {
+                LOG.fine("Ignoring peer of peer: "+e.getLocalizedMessage());
+                continue;
+            }
+            peerStore.savePeer(address, peer);
+        }
+    }
+
+    /**
+     * Drop the peers of peers not seen within the TTL, from the peer store too.
+     */
+    void evictExpiredPeersOfPeers() {
+        peersOfPeers.evictExpired();
+        for(String address : peerStore.peerAddresses()) {
+            try {
+                if(!peersOfPeers.contains(address)) {
+                    peerStore.removePeer(address);
+                }
+            } catch (IllegalArgumentException e) {
+                peerStore.removePeer(address);
+            }
+        }
+    }
+
+    /**
+     * Send a batch of envelopes to the peer over one session, in one PUT when the peer supports it,
+     * completing each envelope's result.
+     * @return wire format of the session the batch went over, or null without one
+     */
+    WireFormat sendBatch(String address, NetworkPeer peer, List<OutboundQueues.Pending> batch) {
+        if(!circuitBreakers.allow(address)) {
+            // Opened while these were queued
+            for(OutboundQueues.Pending pending : batch) {
+                pending.result.complete(false);
+            }
+            return null;
+        }
+        // Whether the send got a session to the device, and whether it went through
+        boolean reached = false;
+        boolean sent = false;
+        try {
+            BluetoothSession session = establishSession(peer);
+            if(session==null) {
+                // Connect failures were counted by the pool; anything else here is on our side
+                LOG.warning("Unable to establish session with peer.");
+                for(OutboundQueues.Pending pending : batch) {
+                    pending.result.complete(false);
+                }
+                return null;
+            }
+            reached = true;
+            try {
+                if(session.supportsBatching()) {
+                    List<byte[]> frames = new ArrayList<>(batch.size());
+                    List<Envelope> envelopes = new ArrayList<>(batch.size());
+                    for(OutboundQueues.Pending pending : batch) {
+                        frames.add(pending.frame());
+                        envelopes.add(pending.envelope);
+                    }
+                    sent = session.sendFrames(frames, envelopes);
+                    LOG.info("Sent batch of "+batch.size()+" envelopes: "+sent);
+                    for(OutboundQueues.Pending pending : batch) {
+                        pending.result.complete(sent);
+                    }
+                } else {
+                    // Peer only understands one JSON envelope per PUT
+                    boolean all = true;
+                    for(OutboundQueues.Pending pending : batch) {
+                        all = all && session.send(pending.envelope);
+                        pending.result.complete(all);
+                    }
+                    sent = all;
+                }
+                return session.wireFormat();
+            } finally {
+                releaseSession(session, sent);
+            }
+        } finally {
+            if(!reached) {
+                circuitBreakers.cancelled(address);
+            } else if(sent) {
+                circuitBreakers.success(address);
+            } else {
+                circuitBreakers.failure(address);
+            }
+        }
     }
 
     public boolean startDiscovery() {
-        LOG.info("Is Bluetooth Radio On: "+LocalDevice.isPowerOn());
-        if(LocalDevice.isPowerOn()) {
+        LOG.info("Is Bluetooth Radio On: "+stack.isPowerOn());
+        if(stack.isPowerOn()) {
             taskRunner.addTask(discovery);
             discoveryRunning = true;
             return true;
@@ -149,6 +434,7 @@ public final class BluetoothService extends NetworkService {
 
     public boolean stopDiscovery() {
         taskRunner.removeTask(discovery, true);
+        serviceSearchScheduler.clear();
         discoveryRunning = false;
         return true;
     }
@@ -163,6 +449,9 @@ public final class BluetoothService extends NetworkService {
             LOG.severe(e.getLocalizedMessage());
             return false;
         }
+        if(stack==null) {
+            stack = BluetoothStack.fromConfig(config);
+        }
         if(System.getProperty("bluetooth.dir.base")==null) {
             // Set up BT Directories within RA Services Directory
             File homeDir = SystemSettings.getUserHomeDir();
@@ -206,16 +495,141 @@ public final class BluetoothService extends NetworkService {
             config.setProperty("bluetooth.dir.log",logFolder.getAbsolutePath());
         }
 
-        // run every 5 minutes for now - may want to lower going into production
+        wireFormat = WireFormat.fromConfig(config.getProperty("bluetooth.wire.format"));
+        compressionEnabled = !"false".equalsIgnoreCase(config.getProperty("bluetooth.compression.enabled"));
+        compressionThreshold = configInt("bluetooth.compression.threshold", 256);
+        compressionLevel = configInt("bluetooth.compression.level", Deflater.DEFAULT_COMPRESSION);
+        chunkSize = Math.max(1024, configInt("bluetooth.chunk.size", 32 * 1024));
+        maxBodyBytes = Math.max(chunkSize, configInt("bluetooth.inbound.maxBodyBytes", 8 * 1024 * 1024));
+        maxChunkResumes = configInt("bluetooth.chunk.maxResumes", 5);
+        chunkReassembler = new ChunkReassembler(
+                configInt("bluetooth.chunk.maxTransferBytes", 8 * 1024 * 1024),
+                configLong("bluetooth.chunk.maxPendingBytes", 32 * 1024 * 1024L),
+                configLong("bluetooth.chunk.timeoutMs", 5 * 60 * 1000L));
+        deduplicator = new EnvelopeDeduplicator(
+                configInt("bluetooth.dedup.maxIds", 64 * 1024),
+                configLong("bluetooth.dedup.windowMs", 10 * 60 * 1000L));
+        peerExchange = new PeerExchange(configInt("bluetooth.peerExchange.maxNeighbors", 256));
+
+        peerStore = new PeerStore(new File(configFolder, "peers.log"),
+                configInt("bluetooth.peerStore.minCompactRecords", 1000));
+        peerStore.load();
+        devices = new DeviceRegistry<>(
+                configInt("bluetooth.devices.max", 1024),
+                configLong("bluetooth.devices.ttlMs", 30 * 60 * 1000L));
+        peersOfPeers = new DeviceRegistry<>(
+                configInt("bluetooth.peersOfPeers.max", 4096),
+                configLong("bluetooth.peersOfPeers.ttlMs", 24 * 60 * 60 * 1000L));
+        friendlyNames = new FriendlyNameResolver(
+                configInt("bluetooth.names.max", 1024),
+                configLong("bluetooth.names.ttlMs", 24 * 60 * 60 * 1000L),
+                configInt("bluetooth.names.threads", 1));
+        for(Map.Entry<String, Map<String, Object>> device : peerStore.devices().entrySet()) {
+            Object name = device.getValue().get(PeerStore.NAME);
+            if(name instanceof String) {
+                friendlyNames.put(device.getKey(), (String)name);
+            }
+        }
+        for(Map.Entry<String, NetworkPeer> peer : peerStore.peers().entrySet()) {
+            try {
+                peersOfPeers.put(peer.getKey(), peer.getValue());
+            } catch (IllegalArgumentException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+        }
+        serviceRecordCache = new ServiceRecordCache(
+                configLong("bluetooth.sdp.cacheTtlMs", 30 * 60 * 1000L),
+                configLong("bluetooth.sdp.negativeCacheTtlMs", 15 * 60 * 1000L),
+                peerStore);
+        LOG.info("Restored "+serviceRecordCache.restore()+" resolved services and "+peersOfPeers.size()+" peers of peers.");
+        sessionPool = new BluetoothSessionPool(this, serviceRecordCache,
+                configInt("bluetooth.session.max", 8),
+                configLong("bluetooth.session.idleTimeoutMs", 5 * 60 * 1000L),
+                configLong("bluetooth.session.probeAfterMs", 30 * 1000L),
+                configLong("bluetooth.session.leaseTimeoutMs", 10 * 1000L),
+                configInt("bluetooth.prewarm.budget", 2),
+                configLong("bluetooth.prewarm.idleTimeoutMs", 60 * 1000L));
+        if("true".equalsIgnoreCase(config.getProperty("bluetooth.prewarm.enabled"))) {
+            prewarmer = new SessionPrewarmer(sessionPool,
+                    configInt("bluetooth.prewarm.budget", 2),
+                    configInt("bluetooth.prewarm.minUses", 3),
+                    configInt("bluetooth.session.max", 8) * 4);
+        }
+        outboundQueues = new OutboundQueues(this,
+                configInt("bluetooth.outbound.queueCapacity", 256),
+                OverflowPolicy.fromConfig(config.getProperty("bluetooth.outbound.overflowPolicy")),
+                configLong("bluetooth.outbound.blockTimeoutMs", 10 * 1000L),
+                configLong("bluetooth.batch.lingerMs", 5),
+                configInt("bluetooth.batch.maxBytes", 16 * 1024),
+                configLong("bluetooth.outbound.writerIdleMs", 60 * 1000L));
+        sendOutTimeoutMs = configLong("bluetooth.outbound.sendOutTimeoutMs", 60 * 1000L);
+        metrics = metricsRegistry(config.getProperty("bluetooth.metrics.registry"));
+        circuitBreakers = new CircuitBreakers(
+                configInt("bluetooth.circuit.failureThreshold", 3),
+                configLong("bluetooth.circuit.backoffMs", 5 * 1000L),
+                configLong("bluetooth.circuit.maxBackoffMs", 5 * 60 * 1000L),
+                configInt("bluetooth.devices.max", 1024),
+                metrics);
+        mbean.setQueueDepths(outboundQueues::depths);
+        mbean.setPooledSessions(sessionPool::size);
+        mbean.setOpenCircuits(circuitBreakers::openCircuits);
+        mbean.setInboundConnections(() -> {
+            InboundServer server = inboundServer;
+            return server == null ? 0 : server.connections();
+        });
+        mbean.register();
+        inboundQueue = new InboundQueue(this,
+                configInt("bluetooth.inbound.queueCapacity", 1024),
+                configInt("bluetooth.inbound.maxDrain", 64));
+        mbean.setInboundQueueDepth(inboundQueue::depth);
+        evictIdleSessions = new EvictIdleSessions(taskRunner, sessionPool, prewarmer);
+        evictIdleSessions.setPeriodicity(60 * 1000);
+        taskRunner.addTask(evictIdleSessions);
+
+        int maxSearches = configInt("bluetooth.sdp.maxInFlight", 0);
+        serviceSearchScheduler = new ServiceSearchScheduler(stack,
+                maxSearches > 0 ? maxSearches : ServiceSearchScheduler.stackLimit(stack, 1),
+                configInt("bluetooth.sdp.maxAttempts", 3),
+                configLong("bluetooth.sdp.backoffMs", 2 * 1000L),
+                new int[]{
+                        0x0100, // Service name
+                        0x5555 // RA id
+                },
+                new UUID[]{ServiceClasses.getUUID(ServiceClasses.OBEX_OBJECT_PUSH)});
+        for(String address : serviceRecordCache.raPeers()) {
+            serviceSearchScheduler.markRaPeer(address);
+        }
+
+        // Inquire often while the neighborhood is changing and back off while it is stable
+        inquiryBackoff = new InquiryBackoff(
+                configLong("bluetooth.discovery.minIntervalMs", 30 * 1000L),
+                configLong("bluetooth.discovery.maxIntervalMs", 10 * 60 * 1000L),
+                configDouble("bluetooth.discovery.churnRatio", 0.1));
+        discoveryEvents = new DiscoveryEvents(
+                configInt("bluetooth.discovery.eventWorkers", 2),
+                configInt("bluetooth.discovery.eventCapacity", 1024),
+                metrics);
         discovery = new BluetoothPeerDiscovery(this, taskRunner);
-        discovery.setPeriodicity(5 * 60 * 1000L);
+        discovery.setPeriodicity(inquiryBackoff.intervalMs());
         discovery.setLongRunning(true);
 
         // run every
 
-        // run every 3 seconds
-        checkPowerStatus = new CheckPowerStatus(taskRunner, this);
-        checkPowerStatus.setPeriodicity(3 * 1000);
+        powerMonitor = new PowerMonitor(powerStateSource(config.getProperty("bluetooth.power.source")),
+                configLong("bluetooth.power.debounceMs", 5 * 1000L),
+                configLong("bluetooth.power.fastPollMs", 1000L),
+                configLong("bluetooth.power.slowPollMs", 30 * 1000L));
+        powerMonitor.addListener(powerOn -> {
+            if(powerOn) {
+                LOG.info("Bluetooth Radio was turned On - Unpausing....");
+                unpause();
+            } else {
+                LOG.info("Bluetooth Radio was turned Off - Pausing...");
+                pause();
+            }
+        });
+        checkPowerStatus = new CheckPowerStatus(taskRunner, powerMonitor);
+        checkPowerStatus.setPeriodicity(configLong("bluetooth.power.fastPollMs", 1000L));
         taskRunner.addTask(checkPowerStatus);
 
         taskRunnerThread = new Thread(taskRunner);
@@ -229,17 +643,39 @@ public final class BluetoothService extends NetworkService {
     public boolean pause() {
         LOG.info("Bluetooth Network sleeping...");
         stopDiscovery();
+        stopInboundServer();
         return true;
     }
 
+    /**
+     * Start accepting connections from remote peers if not already.
+     */
+    synchronized boolean startInboundServer() {
+        if(inboundServer != null && inboundServer.isRunning()) {
+            return true;
+        }
+        String uuid = (String)getNetworkState().localPeer.getDid().getPublicKey().getAttribute("uuid");
+        inboundServer = new InboundServer(this, "btgoep://localhost:"+uuid+";name=1M5",
+                configInt("bluetooth.inbound.maxConnections", 8),
+                configLong("bluetooth.inbound.idleTimeoutMs", 5 * 60 * 1000L),
+                !"false".equalsIgnoreCase(config==null ? null : config.getProperty("bluetooth.inbound.virtualThreads")));
+        return inboundServer.start();
+    }
+
+    synchronized void stopInboundServer() {
+        if(inboundServer != null) {
+            inboundServer.shutdown();
+        }
+    }
+
     @Override
     public boolean unpause() {
         LOG.info("Bluetooth Network awakening...");
-        getNetworkState().networkStatus = NetworkStatus.CONNECTING;
+        setRadioStatus(NetworkStatus.CONNECTING);
         try {
-            String localAddress = LocalDevice.getLocalDevice().getBluetoothAddress();
+            String localAddress = stack.getLocalAddress();
             NetworkPeer localPeer = getNetworkState().localPeer;
-            localPeer.getDid().setUsername(LocalDevice.getLocalDevice().getFriendlyName());
+            localPeer.getDid().setUsername(stack.getLocalName());
             localPeer.getDid().getPublicKey().setAddress(localAddress);
             if (!localAddress.equals(localPeer.getDid().getPublicKey().getAddress())
                     || localPeer.getDid().getPublicKey().getAttribute("uuid") == null) {
@@ -256,9 +692,9 @@ public final class BluetoothService extends NetworkService {
 //            sensorManager.getPeerManager().savePeer(localPeer, true);
             // TODO: Update Network Manager of new status
 //            updateModelListeners();
-        } catch (BluetoothStateException e) {
+        } catch (IOException e) {
             if (e.getLocalizedMessage().contains("Bluetooth Device is not available")) {
-                getNetworkState().networkStatus = NetworkStatus.DISCONNECTED;
+                setRadioStatus(NetworkStatus.DISCONNECTED);
                 LOG.warning("Bluetooth either not installed on machine or not turned on.");
             } else {
                 LOG.warning(e.getLocalizedMessage());
@@ -269,6 +705,9 @@ public final class BluetoothService extends NetworkService {
         getNetworkState().updateIntervalSeconds = 20 * 60; // 20 minutes
         getNetworkState().updateIntervalHyperSeconds = 60; // every minute
 
+        if(!startInboundServer()) {
+            LOG.warning("Unable to accept inbound connections.");
+        }
         return startDiscovery();
     }
 
@@ -283,12 +722,25 @@ public final class BluetoothService extends NetworkService {
         super.shutdown();
         updateStatus(ServiceStatus.SHUTTING_DOWN);
         try {
-            if(LocalDevice.getLocalDevice().getDiscoverable() != DiscoveryAgent.NOT_DISCOVERABLE)
-                LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.NOT_DISCOVERABLE);
-        } catch (BluetoothStateException e) {
+            if(stack.isDiscoverable())
+                stack.setDiscoverable(false);
+        } catch (IOException e) {
             LOG.warning(e.getLocalizedMessage());
         }
         taskRunner.removeTask(checkPowerStatus, true);
+        taskRunner.removeTask(evictIdleSessions, true);
+        serviceSearchScheduler.shutdown();
+        discoveryEvents.shutdown();
+        if(prewarmer != null) {
+            prewarmer.shutdown();
+        }
+        outboundQueues.shutdown(0);
+        sessionPool.closeAll();
+        stopInboundServer();
+        inboundQueue.shutdown(0);
+        friendlyNames.shutdown();
+        peerStore.close();
+        mbean.unregister();
         taskRunner = null;
         LOG.info("Bluetooth Service shutdown.");
         updateStatus(ServiceStatus.SHUTDOWN);;
@@ -301,18 +753,92 @@ public final class BluetoothService extends NetworkService {
         super.gracefulShutdown();
         updateStatus(ServiceStatus.GRACEFULLY_SHUTTING_DOWN);
         try {
-            if(LocalDevice.getLocalDevice().getDiscoverable() != DiscoveryAgent.NOT_DISCOVERABLE)
-                LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.NOT_DISCOVERABLE);
-        } catch (BluetoothStateException e) {
+            if(stack.isDiscoverable())
+                stack.setDiscoverable(false);
+        } catch (IOException e) {
             LOG.warning(e.getLocalizedMessage());
         }
         taskRunner.removeTask(checkPowerStatus, false);
+        taskRunner.removeTask(evictIdleSessions, false);
+        serviceSearchScheduler.shutdown();
+        discoveryEvents.shutdown();
+        if(prewarmer != null) {
+            prewarmer.shutdown();
+        }
+        outboundQueues.shutdown(configLong("bluetooth.outbound.drainTimeoutMs", 30 * 1000L));
+        sessionPool.closeAll();
+        stopInboundServer();
+        inboundQueue.shutdown(configLong("bluetooth.inbound.drainTimeoutMs", 10 * 1000L));
+        friendlyNames.shutdown();
+        peerStore.close();
+        mbean.unregister();
         taskRunner = null;
         LOG.info("Bluetooth Service gracefully shutdown.");
         updateStatus(ServiceStatus.GRACEFULLY_SHUTDOWN);
         return true;
     }
 
+    /**
+     * @param className PowerStateSource implementation with a no-arg constructor, or null to poll the stack
+     */
+    private PowerStateSource powerStateSource(String className) {
+        if(className==null || className.trim().isEmpty()) {
+            return stack::isPowerOn;
+        }
+        try {
+            return (PowerStateSource)Class.forName(className.trim()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            LOG.warning("Unable to load power state source "+className+"; polling the stack: "+e.getLocalizedMessage());
+            return stack::isPowerOn;
+        }
+    }
+
+    /**
+     * @param className MetricsRegistry implementation with a no-arg constructor, or null for the JMX registry only
+     */
+    private MetricsRegistry metricsRegistry(String className) {
+        if(className==null || className.trim().isEmpty()) {
+            return defaultMetrics;
+        }
+        try {
+            return MetricsRegistry.both(defaultMetrics,
+                    (MetricsRegistry)Class.forName(className.trim()).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            LOG.warning("Unable to load metrics registry "+className+"; using JMX only: "+e.getLocalizedMessage());
+            return defaultMetrics;
+        }
+    }
+
+    int configInt(String key, int defaultValue) {
+        return (int)configLong(key, defaultValue);
+    }
+
+    long configLong(String key, long defaultValue) {
+        String value = config==null ? null : config.getProperty(key);
+        if(value==null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid value for "+key+": "+value+"; using default: "+defaultValue);
+            return defaultValue;
+        }
+    }
+
+    double configDouble(String key, double defaultValue) {
+        String value = config==null ? null : config.getProperty(key);
+        if(value==null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid value for "+key+": "+value+"; using default: "+defaultValue);
+            return defaultValue;
+        }
+    }
+
     public static void main(String[] args) {
         BluetoothService service = new BluetoothService(new MessageProducer() {
             @Override
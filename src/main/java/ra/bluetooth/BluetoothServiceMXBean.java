@@ -0,0 +1,49 @@
+package ra.bluetooth;
+
+import java.util.Map;
+
+/**
+ * Management view of the Bluetooth service, registered as ra.bluetooth:type=BluetoothService.
+ */
+public interface BluetoothServiceMXBean {
+
+    /**
+     * @return every counter's total, e.g. PUTs sent and received and connects
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return service searches by how they completed
+     */
+    Map<String, Long> getSdpOutcomes();
+
+    Map<String, Long> getBytesInByPeer();
+
+    Map<String, Long> getBytesOutByPeer();
+
+    /**
+     * @return PUT, GET, connect and inquiry durations in milliseconds and devices per inquiry
+     */
+    Map<String, HistogramSnapshot> getHistograms();
+
+    /**
+     * @return envelopes waiting per peer address
+     */
+    Map<String, Integer> getOutboundQueueDepths();
+
+    int getPooledSessions();
+
+    /**
+     * @return milliseconds until sends are tried again by address of the devices whose circuit is open
+     */
+    Map<String, Long> getOpenCircuits();
+
+    int getInboundConnections();
+
+    /**
+     * @return received envelopes waiting to be handed to the bus
+     */
+    int getInboundQueueDepth();
+
+    void resetMetrics();
+}
@@ -0,0 +1,139 @@
+package ra.bluetooth;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Exposes the service's {@link DefaultMetricsRegistry} and queue state over JMX.
+ */
+final class BluetoothServiceMetrics implements BluetoothServiceMXBean {
+
+    private static final Logger LOG = Logger.getLogger(BluetoothServiceMetrics.class.getName());
+
+    static final String OBJECT_NAME = "ra.bluetooth:type=BluetoothService";
+
+    private final DefaultMetricsRegistry registry;
+    private volatile Supplier<Map<String, Integer>> queueDepths = Collections::emptyMap;
+    private volatile IntSupplier pooledSessions = () -> 0;
+    private volatile Supplier<Map<String, Long>> openCircuits = Collections::emptyMap;
+    private volatile IntSupplier inboundConnections = () -> 0;
+    private volatile IntSupplier inboundQueueDepth = () -> 0;
+
+    BluetoothServiceMetrics(DefaultMetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    void setQueueDepths(Supplier<Map<String, Integer>> queueDepths) {
+        this.queueDepths = queueDepths;
+    }
+
+    void setPooledSessions(IntSupplier pooledSessions) {
+        this.pooledSessions = pooledSessions;
+    }
+
+    void setOpenCircuits(Supplier<Map<String, Long>> openCircuits) {
+        this.openCircuits = openCircuits;
+    }
+
+    void setInboundConnections(IntSupplier inboundConnections) {
+        this.inboundConnections = inboundConnections;
+    }
+
+    void setInboundQueueDepth(IntSupplier inboundQueueDepth) {
+        this.inboundQueueDepth = inboundQueueDepth;
+    }
+
+    /**
+     * Register with the platform MBean server, replacing an earlier registration e.g. from before a restart.
+     */
+    boolean register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            return true;
+        } catch (JMException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    boolean unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            return true;
+        } catch (JMException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return registry.counters();
+    }
+
+    @Override
+    public Map<String, Long> getSdpOutcomes() {
+        return registry.counters(MetricsRegistry.SDP_SEARCH);
+    }
+
+    @Override
+    public Map<String, Long> getBytesInByPeer() {
+        return registry.counters(MetricsRegistry.BYTES_IN);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOutByPeer() {
+        return registry.counters(MetricsRegistry.BYTES_OUT);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return registry.histograms();
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundQueueDepths() {
+        return queueDepths.get();
+    }
+
+    @Override
+    public int getPooledSessions() {
+        return pooledSessions.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getOpenCircuits() {
+        return openCircuits.get();
+    }
+
+    @Override
+    public int getInboundConnections() {
+        return inboundConnections.getAsInt();
+    }
+
+    @Override
+    public int getInboundQueueDepth() {
+        return inboundQueueDepth.getAsInt();
+    }
+
+    @Override
+    public void resetMetrics() {
+        registry.reset();
+    }
+}
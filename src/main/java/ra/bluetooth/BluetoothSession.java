@@ -2,33 +2,57 @@ package ra.bluetooth;
 
 import ra.common.Envelope;
 import ra.common.network.BaseClientSession;
-import ra.common.network.NetworkClientSession;
-import ra.common.network.NetworkPeer;
-import ra.common.network.NetworkStatus;
-import ra.common.route.ExternalRoute;
-import ra.common.route.SimpleRoute;
-
-import javax.bluetooth.BluetoothStateException;
-import javax.bluetooth.DiscoveryAgent;
-import javax.bluetooth.LocalDevice;
-import javax.microedition.io.Connector;
+
 import javax.obex.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 class BluetoothSession extends BaseClientSession {
 
     private static final Logger LOG = Logger.getLogger(BluetoothSession.class.getName());
 
+    /**
+     * Connection state of one session; the service-wide status is derived from those of all sessions.
+     */
+    enum State {
+        // No client connection
+        NEW,
+        // Client connection open, OBEX not connected
+        OPEN,
+        CONNECTING,
+        CONNECTED,
+        // Final
+        CLOSED;
+
+        boolean canMoveTo(State next) {
+            switch (this) {
+                case NEW: return next == OPEN || next == CLOSED;
+                case OPEN: return next == CONNECTING || next == NEW || next == CLOSED;
+                case CONNECTING: return next == CONNECTED || next == OPEN || next == CLOSED;
+                case CONNECTED: return next == OPEN || next == NEW || next == CLOSED;
+                default: return false;
+            }
+        }
+    }
+
     private final BluetoothService service;
     private ClientSession clientSession;
-    private SessionNotifier sessionNotifier;
-    private RequestHandler handler;
-    private Thread serverThread;
     private String remotePeerAddress;
+    // Format agreed with the remote during OBEX CONNECT; JSON until the remote confirms otherwise
+    private WireFormat wireFormat = WireFormat.JSON;
+    // Body compression accepted by the remote during OBEX CONNECT
+    private Compression compression = Compression.NONE;
+    // Whether the remote reassembles chunked transfers, agreed during OBEX CONNECT
+    private boolean chunking = false;
+    // Chunk size of chunked transfers; the remote may take smaller chunks than ours
+    private int chunkSize;
+    private volatile State state = State.NEW;
 
     BluetoothSession(BluetoothService service) {
         this.service = service;
@@ -36,22 +60,95 @@ class BluetoothSession extends BaseClientSession {
 
     @Override
     public Boolean send(Envelope envelope) {
-        if(service.getNetworkState().networkStatus != NetworkStatus.CONNECTED) {
-            connect();
+        return put(wireFormat.encode(envelope), idHashes(Collections.singletonList(envelope)));
+    }
+
+    WireFormat wireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @return true if the remote accepts several envelopes in one PUT
+     */
+    boolean supportsBatching() {
+        return wireFormat.supportsBatching();
+    }
+
+    /**
+     * Send binary encoded envelopes in a single PUT, as a batch frame when there is more than one.
+     * Only valid when {@link #supportsBatching()}.
+     * @param frames envelopes each encoded with {@link EnvelopeCodec#encode(Envelope)}
+     * @param envelopes the envelopes encoded in frames
+     */
+    boolean sendFrames(List<byte[]> frames, List<Envelope> envelopes) {
+        return put(frames.size() == 1 ? frames.get(0) : EnvelopeCodec.encodeBatch(frames), idHashes(envelopes));
+    }
+
+    /**
+     * @return the {@link AppParameters#ENVELOPE_IDS} value for the envelopes, or null if an id is missing, they do
+     * not fit or one carries peer list changes, which the remote must see to refuse them if it already has the id
+     */
+    private static byte[] idHashes(List<Envelope> envelopes) {
+        long[] hashes = new long[envelopes.size()];
+        for(int i=0; i<hashes.length; i++) {
+            String id = envelopes.get(i).getId();
+            if(id == null || PeerExchange.isDelta(envelopes.get(i).getContent())) {
+                return null;
+            }
+            hashes[i] = EnvelopeDeduplicator.hash(id);
+        }
+        return EnvelopeDeduplicator.toBytes(hashes);
+    }
+
+    /**
+     * @param envelopeIds {@link AppParameters#ENVELOPE_IDS} value or null
+     */
+    private boolean put(byte[] payload, byte[] envelopeIds) {
+        if(state != State.CONNECTED && !connect()) {
+            service.metrics.count(MetricsRegistry.PUT_FAILED, 1);
+            return false;
+        }
+        Compression applied = Compression.NONE;
+        if(compression != Compression.NONE && payload.length >= service.compressionThreshold) {
+            byte[] compressed = compression.compress(payload, service.compressionLevel);
+            // Already dense payloads can grow when compressed
+            if(compressed.length < payload.length) {
+                applied = compression;
+                payload = compressed;
+            }
+        }
+        if(chunking && payload.length > chunkSize) {
+            return putChunked(payload, applied);
         }
         HeaderSet hsOperation = clientSession.createHeaderSet();
         hsOperation.setHeader(HeaderSet.NAME, service.getNetworkState().localPeer.getId());
-        hsOperation.setHeader(HeaderSet.TYPE, "text");
+        hsOperation.setHeader(HeaderSet.TYPE, wireFormat.getType());
+        AppParameters params = new AppParameters();
+        if(applied != Compression.NONE) {
+            params.putByte(AppParameters.COMPRESSION, applied.getId());
+        }
+        if(envelopeIds != null) {
+            params.put(AppParameters.ENVELOPE_IDS, envelopeIds);
+        }
+        if(!params.isEmpty()) {
+            hsOperation.setHeader(HeaderSet.APPLICATION_PARAMETER, params.toBytes());
+        }
 
         //Create PUT Operation
         Operation putOperation = null;
         OutputStream os = null;
+        long start = System.nanoTime();
+        int code;
         try {
             putOperation = clientSession.put(hsOperation);
             os = putOperation.openOutputStream();
-            os.write(envelope.toJSON().getBytes());
+            os.write(payload);
+            os.close();
+            os = null;
+            code = putOperation.getResponseCode();
         } catch (IOException e) {
             LOG.warning(e.getLocalizedMessage());
+            service.metrics.count(MetricsRegistry.PUT_FAILED, 1);
             return false;
         } finally {
             try {
@@ -67,58 +164,122 @@ class BluetoothSession extends BaseClientSession {
                 LOG.warning(e.getLocalizedMessage());
             }
         }
+        if(code != ResponseCodes.OBEX_HTTP_OK) {
+            LOG.warning("Put of "+payload.length+" bytes rejected with response code: "+code);
+            service.metrics.count(MetricsRegistry.PUT_FAILED, 1);
+            return false;
+        }
+        service.metrics.count(MetricsRegistry.PUT, 1);
+        service.metrics.count(MetricsRegistry.BYTES_OUT, peerAddress(remotePeerAddress), payload.length);
+        service.metrics.record(MetricsRegistry.PUT_TIME, (System.nanoTime() - start) / 1000000);
+        return true;
+    }
+
+    /**
+     * Send the payload in chunks of one PUT each, so a lost link costs the chunk in flight rather than the whole
+     * payload. After losing the link the session reconnects and resumes from the last acknowledged chunk.
+     */
+    private boolean putChunked(byte[] payload, Compression applied) {
+        long transferId = ThreadLocalRandom.current().nextLong();
+        long start = System.nanoTime();
+        int offset = 0;
+        int resumes = 0;
+        while(offset < payload.length) {
+            int length = Math.min(chunkSize, payload.length - offset);
+            try {
+                int code = putChunk(transferId, payload, offset, length, applied);
+                if(code != ResponseCodes.OBEX_HTTP_OK && code != ResponseCodes.OBEX_HTTP_ACCEPTED) {
+                    LOG.warning("Chunk at "+offset+" of "+payload.length+" bytes rejected with response code: "+code);
+                    service.metrics.count(MetricsRegistry.PUT_FAILED, 1);
+                    return false;
+                }
+                offset += length;
+            } catch (IOException e) {
+                LOG.warning(e.getLocalizedMessage());
+                if(++resumes > service.maxChunkResumes || !reconnect()) {
+                    LOG.warning("Giving up chunked transfer at "+offset+" of "+payload.length+" bytes.");
+                    service.metrics.count(MetricsRegistry.PUT_FAILED, 1);
+                    return false;
+                }
+                LOG.info("Resuming chunked transfer at "+offset+" of "+payload.length+" bytes.");
+                service.metrics.count(MetricsRegistry.PUT_RESUMED, 1);
+            }
+        }
+        service.metrics.count(MetricsRegistry.PUT, 1);
+        service.metrics.count(MetricsRegistry.BYTES_OUT, peerAddress(remotePeerAddress), payload.length);
+        service.metrics.record(MetricsRegistry.PUT_TIME, (System.nanoTime() - start) / 1000000);
         return true;
     }
 
+    /**
+     * @return the response code, ACCEPTED until the last chunk has arrived
+     */
+    private int putChunk(long transferId, byte[] payload, int offset, int length, Compression applied) throws IOException {
+        HeaderSet hsOperation = clientSession.createHeaderSet();
+        hsOperation.setHeader(HeaderSet.NAME, service.getNetworkState().localPeer.getId());
+        hsOperation.setHeader(HeaderSet.TYPE, wireFormat.getType());
+        AppParameters params = new AppParameters()
+                .putLong(AppParameters.TRANSFER_ID, transferId)
+                .putInt(AppParameters.TRANSFER_LENGTH, payload.length)
+                .putInt(AppParameters.CHUNK_OFFSET, offset);
+        if(applied != Compression.NONE) {
+            params.putByte(AppParameters.COMPRESSION, applied.getId());
+        }
+        hsOperation.setHeader(HeaderSet.APPLICATION_PARAMETER, params.toBytes());
+        Operation putOperation = clientSession.put(hsOperation);
+        try {
+            try (OutputStream os = putOperation.openOutputStream()) {
+                os.write(payload, offset, length);
+            }
+            return putOperation.getResponseCode();
+        } finally {
+            putOperation.close();
+        }
+    }
+
+    /**
+     * Drop the client connection and connect again.
+     */
+    private boolean reconnect() {
+        if(clientSession!=null) {
+            try {
+                clientSession.close();
+            } catch (IOException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+            clientSession = null;
+        }
+        moveTo(State.NEW);
+        return connect();
+    }
+
+    /**
+     * @return the device address of a btgoep connection url, or the url itself if it is not one
+     */
+    static String peerAddress(String url) {
+        if(url==null || !url.startsWith("btgoep://")) {
+            return url;
+        }
+        int end = url.indexOf(':', 9);
+        return end < 0 ? url.substring(9) : url.substring(9, end);
+    }
+
     @Override
     public boolean open(String address) {
         LOG.info("Establishing session based on provided address: "+address);
-        service.getNetworkState().networkStatus = NetworkStatus.WARMUP;
+        if(state == State.CLOSED) {
+            LOG.warning("Session to "+address+" already closed.");
+            return false;
+        }
         // Client
         remotePeerAddress = address;
         try {
-            clientSession = (ClientSession) Connector.open(address);
+            clientSession = service.stack.openClient(address);
         } catch (IOException e) {
             LOG.warning("Failed to open connection: "+e.getLocalizedMessage());
             return false;
         }
-        // Server
-        if(serverThread==null || !serverThread.isAlive()) {
-            String uuid = (String)service.getNetworkState().localPeer.getDid().getPublicKey().getAttribute("uuid");
-            try {
-                String url = "btgoep://localhost:"+uuid+";name=1M5";
-                LOG.info("Setting up listener on: "+url);
-                sessionNotifier = (SessionNotifier) Connector.open(url);
-                handler = new RequestHandler(service, this);
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-                return false;
-            }
-            // Place device in discovery mode
-            try {
-                LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.GIAC);
-            } catch (BluetoothStateException e) {
-                LOG.warning(e.getLocalizedMessage());
-                return false;
-            }
-            serverThread = new Thread(() -> {
-                while (getStatus() != NetworkClientSession.Status.STOPPING) {
-                    try {
-                        sessionNotifier.acceptAndOpen(handler);
-                    } catch (IOException e) {
-                        LOG.warning(e.getLocalizedMessage());
-                    }
-                }
-                // Take device out of discovery mode
-                try {
-                    LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.NOT_DISCOVERABLE);
-                } catch (BluetoothStateException e) {
-                    LOG.warning(e.getLocalizedMessage());
-                }
-            });
-            serverThread.setDaemon(true);
-            serverThread.start();
-        }
+        moveTo(State.OPEN);
 
         LOG.info("Session established.");
         return true;
@@ -126,25 +287,61 @@ class BluetoothSession extends BaseClientSession {
 
     @Override
     public boolean connect() {
+        if(state == State.CONNECTED) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean connected = connectClient();
+        service.metrics.count(connected ? MetricsRegistry.CONNECT : MetricsRegistry.CONNECT_FAILED, 1);
+        service.metrics.record(MetricsRegistry.CONNECT_TIME, (System.nanoTime() - start) / 1000000);
+        return connected;
+    }
+
+    private boolean connectClient() {
         LOG.info("Connecting to remote bluetooth device of peer: "+remotePeerAddress);
-        service.getNetworkState().networkStatus = NetworkStatus.CONNECTING;
         if(clientSession==null) {
             if(!open(remotePeerAddress))
                 return false;
         }
+        if(!moveTo(State.CONNECTING)) {
+            return false;
+        }
         try {
             HeaderSet hsOperation = clientSession.createHeaderSet();
             hsOperation.setHeader(HeaderSet.NAME, service.getNetworkState().localPeer.getId());
-            hsOperation.setHeader(HeaderSet.TYPE, "text");
+            hsOperation.setHeader(HeaderSet.TYPE, service.wireFormat.getType());
+            AppParameters offer = new AppParameters()
+                    .putByte(AppParameters.SUPPORTED_CHUNKING, 1)
+                    .putByte(AppParameters.SUPPORTED_PEER_DELTA, 1);
+            if(service.compressionEnabled) {
+                offer.putByte(AppParameters.SUPPORTED_COMPRESSION, Compression.supportedMask());
+            }
+            hsOperation.setHeader(HeaderSet.APPLICATION_PARAMETER, offer.toBytes());
             HeaderSet hsConnectReply = clientSession.connect(hsOperation);
             if (hsConnectReply.getResponseCode() != ResponseCodes.OBEX_HTTP_OK) {
                 LOG.info("Not connected.");
+                moveTo(State.OPEN);
                 return false;
             } else {
-                service.getNetworkState().networkStatus = NetworkStatus.CONNECTED;
+                // Older peers do not echo the TYPE header so fall back to JSON for them
+                wireFormat = WireFormat.fromType((String)hsConnectReply.getHeader(HeaderSet.TYPE));
+                AppParameters params = AppParameters.parse((byte[])hsConnectReply.getHeader(HeaderSet.APPLICATION_PARAMETER));
+                compression = service.compressionEnabled
+                        ? Compression.select(params.getByte(AppParameters.SUPPORTED_COMPRESSION, 0))
+                        : Compression.NONE;
+                // Older peers would take each chunk for a whole body
+                chunking = params.getByte(AppParameters.SUPPORTED_CHUNKING, 0) == 1;
+                // Older peers do not say, and took chunks of our size
+                chunkSize = Math.min(service.chunkSize, Math.max(1024, params.getInt(AppParameters.MAX_CHUNK_SIZE, service.chunkSize)));
+                // Older peers take peer lists whole
+                boolean peerDeltas = params.getByte(AppParameters.SUPPORTED_PEER_DELTA, 0) == 1;
+                service.peerExchange.supported(peerAddress(remotePeerAddress), peerDeltas);
+                LOG.info("Connected using wire format: "+wireFormat+"; compression: "+compression+"; chunking: "+chunking+"; peer deltas: "+peerDeltas);
+                moveTo(State.CONNECTED);
             }
         } catch (IOException e) {
             LOG.warning(e.getLocalizedMessage());
+            moveTo(State.OPEN);
             return false;
         }
         return true;
@@ -155,7 +352,7 @@ class BluetoothSession extends BaseClientSession {
         if(clientSession!=null) {
             try {
                 clientSession.disconnect(null);
-                service.getNetworkState().networkStatus = NetworkStatus.CONNECTING;
+                moveTo(State.OPEN);
             } catch (IOException e) {
                 LOG.warning(e.getLocalizedMessage());
             }
@@ -165,169 +362,113 @@ class BluetoothSession extends BaseClientSession {
 
     @Override
     public boolean isConnected() {
-        return service.getNetworkState().networkStatus == NetworkStatus.CONNECTED;
+        return state == State.CONNECTED;
+    }
+
+    State getState() {
+        return state;
     }
 
     @Override
-    public boolean close() {
-        service.getNetworkState().networkStatus = NetworkStatus.DISCONNECTED;
-        if(clientSession!=null) {
-            try {
-                clientSession.close();
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-                return false;
-            }
+    public Status getStatus() {
+        switch (state) {
+            case NEW: return Status.INITIALIZING;
+            case OPEN:
+            case CONNECTING: return Status.STARTING;
+            case CONNECTED: return Status.READY;
+            default: return Status.STOPPED;
         }
-        if(sessionNotifier!=null) {
-            try {
-                sessionNotifier.close();
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-            }
+    }
+
+    /**
+     * Move to the state if that is a valid transition from the current one.
+     * @return true if the session is in the state
+     */
+    private synchronized boolean moveTo(State next) {
+        State previous = state;
+        if(previous == next) {
+            return true;
         }
-        serverThread.interrupt();
+        if(!previous.canMoveTo(next)) {
+            LOG.warning("Session to "+remotePeerAddress+" cannot move from "+previous+" to "+next);
+            return false;
+        }
+        state = next;
+        service.sessionStateChanged(previous, next);
         return true;
     }
 
-    private static class RequestHandler extends ServerRequestHandler {
-
-        private BluetoothService service;
-        private BluetoothSession session;
-
-        private RequestHandler (BluetoothService service, BluetoothSession session) {
-            this.service = service;
-            this.session = session;
+    /**
+     * Cheap liveness check of the OBEX link. Issues an empty SETPATH - any response,
+     * including not implemented, proves the remote end is still there.
+     * @return true if the remote responded
+     */
+    boolean probe() {
+        if(clientSession==null) {
+            return false;
         }
-
-        @Override
-        public int onConnect(HeaderSet request, HeaderSet reply) {
-            LOG.info("Inbound Connection request...");
-            try {
-                String id = (String)request.getHeader(HeaderSet.NAME);
-                LOG.info("id="+id);
-                // TODO: Send peer to Peer Manager
-                Envelope e = Envelope.documentFactory();
-                e.setRoute(new SimpleRoute());
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-            }
-            return ResponseCodes.OBEX_HTTP_OK;
+        try {
+            clientSession.setPath(clientSession.createHeaderSet(), false, false);
+            return true;
+        } catch (IOException e) {
+            LOG.info("Liveness probe failed for "+remotePeerAddress+": "+e.getLocalizedMessage());
+            return false;
         }
+    }
 
-//        @Override
-//        public int onSetPath(HeaderSet request, HeaderSet reply, boolean backup, boolean create) {
-//
-//        }
-
-        /**
-         * Received a put operation pushing data to this peer.
-         * @param op
-         * @return
-         */
-        public int onPut(Operation op) {
-            LOG.info("Received Put Operation: "+op.toString());
-            Envelope envelope = Envelope.documentFactory();
-            try {
-                HeaderSet hs = op.getReceivedHeaders();
-                String name = (String) hs.getHeader(HeaderSet.NAME);
-                if (name != null) {
-                    LOG.info("put name:" + name);
-                }
-
-                byte[] appHeader = (byte[]) hs.getHeader(HeaderSet.APPLICATION_PARAMETER);
-                if(appHeader != null && appHeader.length > 1) {
-                    int appHeaderLength = appHeader.length;
-                    byte tag = appHeader[0];
-                    byte length = appHeader[1];
-                    LOG.info("headers: tag="+tag+"; length="+length);
-                }
-
-                InputStream is = op.openInputStream();
-
-                StringBuffer buf = new StringBuffer();
-                int data;
-                while ((data = is.read()) != -1) {
-                    buf.append((char) data);
+    @Override
+    public boolean close() {
+        boolean connected = state == State.CONNECTED;
+        moveTo(State.CLOSED);
+        if(clientSession!=null) {
+            if(connected) {
+                // Frees the remote's inbound connection now rather than at its idle timeout
+                try {
+                    clientSession.disconnect(null);
+                } catch (IOException e) {
+                    LOG.fine("Disconnect from "+remotePeerAddress+" failed: "+e.getLocalizedMessage());
                 }
-
-                envelope.fromJSON(buf.toString());
-                LOG.info("Put received:" + envelope.toJSON());
-                service.send(envelope);
-
-                op.close();
-                return ResponseCodes.OBEX_HTTP_OK;
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-                return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
             }
-        }
-
-        /**
-         * Received a Get operation asking for data from this peer.
-         * @param op
-         * @return
-         */
-        @Override
-        public int onGet(Operation op) {
-            LOG.info("Received Get Operation: "+op.toString());
-            Envelope envelope = Envelope.documentFactory();
             try {
-                HeaderSet hs = op.getReceivedHeaders();
-                String name = (String) hs.getHeader(HeaderSet.NAME);
-                if (name != null) {
-                    LOG.info("get name: " + name);
-                }
-
-                InputStream is = op.openInputStream();
-
-                StringBuffer buf = new StringBuffer();
-                int data;
-                while ((data = is.read()) != -1) {
-                    buf.append((char) data);
-                }
-
-                envelope.fromJSON(buf.toString());
-                LOG.info("Get Request:" + envelope.toJSON());
-                if(envelope.markerPresent("NetOpReq")) {
-                    ExternalRoute er = (ExternalRoute)envelope.getRoute();
-                    LOG.info("Received NetOpReq id: "+envelope.getId().substring(0,7)+"... from: "+er.getOrigination().getDid().getPublicKey().getFingerprint().substring(0,7));
-                    List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getContent();
-                    if (recommendedPeers != null) {
-                        LOG.info(recommendedPeers.size() + " Known Peers Received.");
-                        // TODO: Send to Network Manager Service
-                    }
-                    // TODO: Request from Network Manager Known Peers
-                    envelope.mark("NetOpRes");
-//                    envelope.addContent();
-                    envelope.addExternalRoute(BluetoothService.class.getName(), BluetoothService.OPERATION_PEER_STATUS_REPLY, service.getNetworkState().localPeer, er.getOrigination());
-                    envelope.ratchet();
-
-                    // TODO: Return back with PUT request
-
-                }
-
-                op.close();
-                return ResponseCodes.OBEX_HTTP_OK;
+                clientSession.close();
             } catch (IOException e) {
                 LOG.warning(e.getLocalizedMessage());
-                return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+                return false;
             }
         }
+        return true;
+    }
 
-//        @Override
-//        public int onDelete(HeaderSet request, HeaderSet reply) {
-//
-//        }
+    /**
+     * Bulk read the operation body into a pooled buffer, inflating it if compressed, and decode the envelopes in it.
+     */
+    static List<Envelope> readEnvelopes(BufferPool bufferPool, Operation op, WireFormat format, Compression compression, int maxLength) throws IOException {
+        return readEnvelopes(bufferPool, op, format, compression, maxLength, bytes -> {});
+    }
 
-        @Override
-        public void onDisconnect(HeaderSet request, HeaderSet reply) {
-            LOG.info("Disconnect request received. Disconnecting session...");
-            if(session.disconnect()) {
-                LOG.info("Session disconnected successfully.");
-            } else {
-                LOG.info("Issues with Session disconnection.");
-            }
+    /**
+     * @param maxLength largest body read, and largest it may inflate to
+     * @param bodyRead told the size of the body as received, before inflating
+     * @throws BufferPool.TooLargeException if the body is larger than maxLength
+     */
+    static List<Envelope> readEnvelopes(BufferPool bufferPool, Operation op, WireFormat format, Compression compression, int maxLength, LongConsumer bodyRead) throws IOException {
+        try (InputStream is = op.openInputStream();
+             BufferPool.Bytes body = bufferPool.readFully(is, op.getLength(), maxLength)) {
+            bodyRead.accept(body.length());
+            return decodeEnvelopes(bufferPool, body.array(), body.length(), format, compression, maxLength);
+        }
+    }
+
+    /**
+     * Inflate the body if compressed and decode the envelopes in it.
+     * @param maxLength most bytes the body may inflate to
+     */
+    static List<Envelope> decodeEnvelopes(BufferPool bufferPool, byte[] body, int length, WireFormat format, Compression compression, int maxLength) throws IOException {
+        if(compression == Compression.NONE) {
+            return format.decode(body, length);
+        }
+        try (BufferPool.Bytes inflated = compression.decompress(bufferPool, body, length, maxLength)) {
+            return format.decode(inflated.array(), inflated.length());
         }
     }
 
@@ -0,0 +1,300 @@
+package ra.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Pool of warm BluetoothSessions keyed by remote Bluetooth address.
+ *
+ * A session is leased exclusively for the duration of an operation and returned afterwards.
+ * Idle sessions are kept open for reuse until they exceed the idle timeout, and are probed
+ * for liveness before being handed out again if they have been idle for a while.
+ * When the pool is full, the least recently used idle session is closed to make room.
+ *
+ * Sessions can also be opened ahead of their first lease, in free slots only and up to the warm budget.
+ * A warm session nobody leased is closed after the shorter warm idle timeout and is the first to make room.
+ */
+class BluetoothSessionPool {
+
+    private static final Logger LOG = Logger.getLogger(BluetoothSessionPool.class.getName());
+
+    private final BluetoothService service;
+    private final ServiceRecordCache serviceRecordCache;
+    private final int maxSessions;
+    private final long idleTimeoutMs;
+    private final long probeAfterMs;
+    private final long leaseTimeoutMs;
+    private final int warmBudget;
+    private final long warmIdleTimeoutMs;
+
+    // Access ordered so iteration starts with the least recently used entry
+    private final Map<String, PooledSession> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed = false;
+
+    BluetoothSessionPool(BluetoothService service, ServiceRecordCache serviceRecordCache, int maxSessions, long idleTimeoutMs, long probeAfterMs, long leaseTimeoutMs,
+                         int warmBudget, long warmIdleTimeoutMs) {
+        this.service = service;
+        this.serviceRecordCache = serviceRecordCache;
+        this.maxSessions = maxSessions;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.probeAfterMs = probeAfterMs;
+        this.leaseTimeoutMs = leaseTimeoutMs;
+        this.warmBudget = warmBudget;
+        this.warmIdleTimeoutMs = warmIdleTimeoutMs;
+    }
+
+    /**
+     * Lease a connected session to the provided address, opening one if none is pooled.
+     * Blocks while another thread holds the session for this address or while the pool is full
+     * of leased sessions, up to the lease timeout.
+     * @param address Bluetooth address of the remote device - the pool key
+     * @param url connection url to open a new session with
+     * @return leased session or null if none could be established in time; failing to open or connect a session
+     * counts against the device's circuit, the pool being full or closed does not
+     */
+    BluetoothSession lease(String address, String url) {
+        PooledSession entry;
+        BluetoothSession evicted = null;
+        boolean fresh = false;
+        long deadline = System.currentTimeMillis() + leaseTimeoutMs;
+        synchronized (entries) {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                entry = entries.get(address);
+                if (entry != null && !entry.leased) {
+                    entry.leased = true;
+                    if (entry.warm) {
+                        entry.warm = false;
+                        service.metrics.count(MetricsRegistry.SESSION_PREWARM_USED, 1);
+                    }
+                    break;
+                }
+                if (entry == null) {
+                    if (entries.size() >= maxSessions) {
+                        evicted = removeLeastRecentlyUsedIdle();
+                    }
+                    if (entries.size() < maxSessions) {
+                        entry = new PooledSession(new BluetoothSession(service), address);
+                        entry.leased = true;
+                        entries.put(address, entry);
+                        fresh = true;
+                        break;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOG.warning("Timed out leasing Bluetooth session for address: " + address);
+                    return null;
+                }
+                try {
+                    entries.wait(remaining);
+                } catch (InterruptedException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                    return null;
+                }
+            }
+        }
+        if (evicted != null) {
+            LOG.info("Session pool full - closing least recently used session.");
+            evicted.close();
+        }
+        BluetoothSession session = entry.session;
+        if (!fresh && !isAlive(entry)) {
+            LOG.info("Pooled session for " + address + " failed liveness probe - reopening.");
+            session.close();
+            session = new BluetoothSession(service);
+            entry.session = session;
+            fresh = true;
+        }
+        if (fresh && !(session.open(url) && session.connect())) {
+            service.circuitBreakers.failure(address);
+            // The cached service URL may be stale - have discovery search the device again
+            serviceRecordCache.invalidate(address);
+            invalidate(session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Open and connect a session to the address ahead of its first lease. Only takes a free slot, never closing
+     * another session to make room, and holds at most the warm budget of sessions nobody has leased yet.
+     * @return true if a session to the address is pooled
+     */
+    boolean prewarm(String address, String url) {
+        PooledSession entry;
+        synchronized (entries) {
+            if (closed) {
+                return false;
+            }
+            if (entries.containsKey(address)) {
+                return true;
+            }
+            if (entries.size() >= maxSessions || warmSessions() >= warmBudget || service.circuitBreakers.isOpen(address)) {
+                return false;
+            }
+            entry = new PooledSession(new BluetoothSession(service), address);
+            entry.leased = true;
+            entry.warm = true;
+            entries.put(address, entry);
+        }
+        LOG.info("Pre-warming session for " + address);
+        if (!(entry.session.open(url) && entry.session.connect())) {
+            service.circuitBreakers.failure(address);
+            invalidate(entry.session);
+            return false;
+        }
+        service.metrics.count(MetricsRegistry.SESSION_PREWARMED, 1);
+        release(entry.session);
+        return true;
+    }
+
+    /**
+     * Return a leased session to the pool for reuse.
+     */
+    void release(BluetoothSession session) {
+        synchronized (entries) {
+            PooledSession entry = find(session);
+            if (entry != null) {
+                entry.leased = false;
+                entry.lastUsed = System.currentTimeMillis();
+            }
+            entries.notifyAll();
+        }
+    }
+
+    /**
+     * Remove a session from the pool and close it, e.g. after a failed operation.
+     */
+    void invalidate(BluetoothSession session) {
+        synchronized (entries) {
+            PooledSession entry = find(session);
+            if (entry != null) {
+                entries.remove(entry.address);
+            }
+            entries.notifyAll();
+        }
+        session.close();
+    }
+
+    /**
+     * Close all idle sessions that have not been used within the idle timeout.
+     * @return number of sessions evicted
+     */
+    int evictIdle() {
+        List<BluetoothSession> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Iterator<PooledSession> i = entries.values().iterator();
+            while (i.hasNext()) {
+                PooledSession entry = i.next();
+                if (!entry.leased && now - entry.lastUsed > (entry.warm ? warmIdleTimeoutMs : idleTimeoutMs)) {
+                    expired.add(entry.session);
+                    i.remove();
+                }
+            }
+            if (!expired.isEmpty()) {
+                entries.notifyAll();
+            }
+        }
+        for (BluetoothSession session : expired) {
+            session.close();
+        }
+        if (!expired.isEmpty()) {
+            LOG.info("Evicted " + expired.size() + " idle Bluetooth sessions.");
+        }
+        return expired.size();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Close every pooled session and refuse further leases.
+     */
+    void closeAll() {
+        List<BluetoothSession> all = new ArrayList<>();
+        synchronized (entries) {
+            closed = true;
+            for (PooledSession entry : entries.values()) {
+                all.add(entry.session);
+            }
+            entries.clear();
+            entries.notifyAll();
+        }
+        for (BluetoothSession session : all) {
+            session.close();
+        }
+    }
+
+    private boolean isAlive(PooledSession entry) {
+        if (!entry.session.isConnected()) {
+            return entry.session.connect();
+        }
+        // Only pay for a round trip when the link may have gone stale
+        return System.currentTimeMillis() - entry.lastUsed < probeAfterMs || entry.session.probe();
+    }
+
+    private int warmSessions() {
+        int warm = 0;
+        for (PooledSession entry : entries.values()) {
+            if (entry.warm) {
+                warm++;
+            }
+        }
+        return warm;
+    }
+
+    private BluetoothSession removeLeastRecentlyUsedIdle() {
+        // Sessions only opened on speculation go first
+        Iterator<PooledSession> i = entries.values().iterator();
+        while (i.hasNext()) {
+            PooledSession entry = i.next();
+            if (!entry.leased && entry.warm) {
+                i.remove();
+                return entry.session;
+            }
+        }
+        i = entries.values().iterator();
+        while (i.hasNext()) {
+            PooledSession entry = i.next();
+            if (!entry.leased) {
+                i.remove();
+                return entry.session;
+            }
+        }
+        return null;
+    }
+
+    private PooledSession find(BluetoothSession session) {
+        for (PooledSession entry : entries.values()) {
+            if (entry.session == session) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static class PooledSession {
+        private BluetoothSession session;
+        private final String address;
+        private boolean leased = false;
+        // Opened by prewarm and not leased since
+        private boolean warm = false;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledSession(BluetoothSession session, String address) {
+            this.session = session;
+            this.address = address;
+        }
+    }
+}
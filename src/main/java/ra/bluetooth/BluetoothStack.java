@@ -0,0 +1,125 @@
+package ra.bluetooth;
+
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connection;
+import javax.obex.ClientSession;
+import javax.obex.SessionNotifier;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The Bluetooth stack the service runs on: the local radio, inquiry, SDP and OBEX connections.
+ *
+ * {@link BlueCoveStack} is the JSR-82 stack used in production. {@link SimulatedBluetoothStack} runs in memory
+ * so discovery and send/receive paths can be load tested without radios. Result codes passed to
+ * {@link Listener} are those of {@link DiscoveryListener}.
+ */
+interface BluetoothStack {
+
+    boolean isPowerOn();
+
+    String getLocalAddress() throws IOException;
+
+    String getLocalName() throws IOException;
+
+    boolean isDiscoverable() throws IOException;
+
+    void setDiscoverable(boolean discoverable) throws IOException;
+
+    /**
+     * @return value of a JSR-82 local device property such as bluetooth.sd.trans.max, or null
+     */
+    String getProperty(String key);
+
+    /**
+     * @return devices the stack already knows about without an inquiry
+     */
+    List<Device> retrieveCachedDevices() throws IOException;
+
+    /**
+     * Start a general inquiry reporting to the listener.
+     * @return false if the inquiry could not be started
+     */
+    boolean startInquiry(Listener listener) throws IOException;
+
+    /**
+     * Start an SDP search of the device reporting to the listener.
+     * @return transaction id
+     */
+    int searchServices(int[] attrIDs, UUID[] uuids, Device device, Listener listener) throws IOException;
+
+    ClientSession openClient(String url) throws IOException;
+
+    SessionNotifier openServer(String url) throws IOException;
+
+    /**
+     * @return device address of the remote end of a connection accepted by a server, or null if unknown
+     */
+    String remoteAddress(Connection connection);
+
+    /**
+     * @return false once a connection accepted by a server has been closed, by either end
+     */
+    boolean isOpen(Connection connection);
+
+    /**
+     * @return stack named by bluetooth.stack, BlueCove unless set to simulated
+     */
+    static BluetoothStack fromConfig(Properties config) {
+        if("simulated".equalsIgnoreCase(config.getProperty("bluetooth.stack"))) {
+            return SimulatedBluetoothStack.fromConfig(config);
+        }
+        return new BlueCoveStack();
+    }
+
+    /**
+     * A remote device as found by an inquiry.
+     */
+    interface Device {
+
+        String getBluetoothAddress();
+
+        String getFriendlyName(boolean alwaysAsk) throws IOException;
+
+        boolean isAuthenticated();
+
+        boolean isEncrypted();
+
+        boolean isTrustedDevice();
+
+        int getMajorDeviceClass();
+
+        int getMinorDeviceClass();
+
+        int getServiceClasses();
+    }
+
+    /**
+     * A service record returned by an SDP search.
+     */
+    interface Service {
+
+        /**
+         * @return url to connect to the service without authentication or encryption, or null if it requires them
+         */
+        String getConnectionURL();
+
+        /**
+         * @return value of the attribute if it was retrieved, otherwise null
+         */
+        Object getAttributeValue(int attrID);
+    }
+
+    interface Listener {
+
+        void deviceDiscovered(Device device);
+
+        void inquiryCompleted(int discType);
+
+        void servicesDiscovered(int transID, List<Service> services);
+
+        void serviceSearchCompleted(int transID, int respCode);
+    }
+}
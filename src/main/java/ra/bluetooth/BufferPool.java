@@ -0,0 +1,150 @@
+package ra.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of reusable byte arrays for reading inbound OBEX bodies in bulk.
+ *
+ * Buffers are bucketed by power-of-two size from the minimum up to the maximum pooled size.
+ * Requests larger than the maximum are allocated and dropped after use.
+ */
+class BufferPool {
+
+    private final int minSize;
+    private final int maxPooledSize;
+    private final BlockingQueue<byte[]>[] buckets;
+
+    @SuppressWarnings("unchecked")
+    BufferPool(int minSize, int maxPooledSize, int buffersPerBucket) {
+        this.minSize = Integer.highestOneBit(Math.max(minSize, 64));
+        this.maxPooledSize = Math.max(this.minSize, maxPooledSize);
+        int count = bucket(this.maxPooledSize) + 1;
+        buckets = new BlockingQueue[count];
+        for(int i=0; i<count; i++) {
+            buckets[i] = new ArrayBlockingQueue<>(buffersPerBucket);
+        }
+    }
+
+    /**
+     * @param minCapacity required capacity
+     * @return buffer of at least the required capacity, reused when one is available
+     */
+    byte[] acquire(int minCapacity) {
+        int size = sizeFor(minCapacity);
+        if(size > maxPooledSize) {
+            return new byte[size];
+        }
+        byte[] buf = buckets[bucket(size)].poll();
+        return buf==null ? new byte[size] : buf;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers not acquired from this pool are ignored.
+     */
+    void release(byte[] buf) {
+        if(buf==null || buf.length > maxPooledSize || buf.length < minSize || Integer.bitCount(buf.length) != 1) {
+            return;
+        }
+        buckets[bucket(buf.length)].offer(buf);
+    }
+
+    /**
+     * Read the stream to its end into a pooled buffer. The returned buffer must be closed to recycle it.
+     * @param is stream to read
+     * @param lengthHint expected length if known (e.g. OBEX LENGTH header), otherwise -1; only sizes the first buffer
+     * @param maxLength most bytes to read
+     * @throws TooLargeException if the stream holds more than maxLength bytes
+     */
+    Bytes readFully(InputStream is, long lengthHint, int maxLength) throws IOException {
+        // The hint comes from the remote, so it never sizes more than a pooled buffer up front
+        int initial = lengthHint > 0 ? (int)Math.min(lengthHint, Math.min(maxPooledSize, maxLength)) : minSize;
+        byte[] buf = acquire(initial);
+        int limit = Math.min(buf.length, maxLength);
+        int length = 0;
+        try {
+            int read;
+            while ((read = is.read(buf, length, limit - length)) != -1) {
+                length += read;
+                if (length == limit) {
+                    // Exact fit is common when the length was known up front, so check for more before growing
+                    int next = is.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    if (length >= maxLength) {
+                        throw new TooLargeException(maxLength);
+                    }
+                    byte[] larger = acquire(length + 1);
+                    System.arraycopy(buf, 0, larger, 0, length);
+                    release(buf);
+                    buf = larger;
+                    buf[length++] = (byte)next;
+                    limit = Math.min(buf.length, maxLength);
+                }
+            }
+        } catch (IOException e) {
+            release(buf);
+            throw e;
+        }
+        return new Bytes(buf, length);
+    }
+
+    /**
+     * Track a buffer acquired from this pool so it is released when the returned Bytes are closed.
+     */
+    Bytes wrap(byte[] buf, int length) {
+        return new Bytes(buf, length);
+    }
+
+    private int sizeFor(int capacity) {
+        if(capacity <= minSize) {
+            return minSize;
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        return size > 0 ? size : capacity;
+    }
+
+    private int bucket(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * A body longer than the reader allows.
+     */
+    static final class TooLargeException extends IOException {
+        TooLargeException(int maxLength) {
+            super("Body exceeds "+maxLength+" bytes.");
+        }
+    }
+
+    /**
+     * Pooled buffer with the number of valid bytes read into it.
+     */
+    final class Bytes implements AutoCloseable {
+
+        private byte[] buf;
+        private final int length;
+
+        private Bytes(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int length() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            release(buf);
+            buf = null;
+        }
+    }
+}
@@ -3,32 +3,22 @@ package ra.bluetooth;
 import ra.common.tasks.BaseTask;
 import ra.common.tasks.TaskRunner;
 
-import javax.bluetooth.LocalDevice;
-import java.util.logging.Logger;
-
+/**
+ * Polls the power monitor, rescheduling itself at the pace the monitor asks for.
+ */
 public final class CheckPowerStatus extends BaseTask {
 
-    private static final Logger LOG = Logger.getLogger(CheckPowerStatus.class.getName());
-
-    private final BluetoothService service;
-    private boolean powerOn = false;
+    private final PowerMonitor monitor;
 
-    public CheckPowerStatus(TaskRunner taskRunner, BluetoothService service) {
+    CheckPowerStatus(TaskRunner taskRunner, PowerMonitor monitor) {
         super(CheckPowerStatus.class.getSimpleName(), taskRunner);
-        this.service = service;
+        this.monitor = monitor;
     }
 
     @Override
     public Boolean execute() {
-        if(!powerOn && LocalDevice.isPowerOn()) {
-            powerOn = true;
-            LOG.info("Bluetooth Radio was turned On - Unpausing....");
-            service.unpause();
-        } else if (powerOn && !LocalDevice.isPowerOn()) {
-            powerOn = false;
-            LOG.info("Bluetooth Radio was turned Off - Pausing...");
-            service.pause();
-        }
+        monitor.check();
+        setPeriodicity(monitor.nextPollMs());
         return true;
     }
 }
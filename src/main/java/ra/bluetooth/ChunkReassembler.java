@@ -0,0 +1,127 @@
+package ra.bluetooth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Receiver side of chunked transfers: collects the chunks of each sender's transfers until the body is whole.
+ *
+ * Chunks may arrive more than once, e.g. when the sender resumes after losing the link before it saw the
+ * acknowledgement, and are placed by offset so repeats are harmless. Transfers not completed within the
+ * timeout are dropped, and the oldest are dropped early when buffered bodies would exceed the memory bound.
+ */
+final class ChunkReassembler {
+
+    private static final Logger LOG = Logger.getLogger(ChunkReassembler.class.getName());
+
+    private final int maxTransferBytes;
+    private final long maxPendingBytes;
+    private final long timeoutMs;
+
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    private long pendingBytes = 0;
+
+    private static final class Transfer {
+        private final byte[] body;
+        // Chunk lengths by offset
+        private final Map<Integer, Integer> chunks = new HashMap<>();
+        private int received = 0;
+        private long lastChunkAt;
+
+        private Transfer(int length) {
+            body = new byte[length];
+        }
+    }
+
+    /**
+     * @param maxTransferBytes largest body accepted
+     * @param maxPendingBytes bound on bodies buffered across incomplete transfers; at least maxTransferBytes
+     * @param timeoutMs time after a transfer's last chunk it is given up
+     */
+    ChunkReassembler(int maxTransferBytes, long maxPendingBytes, long timeoutMs) {
+        this.maxTransferBytes = maxTransferBytes;
+        this.maxPendingBytes = Math.max(maxTransferBytes, maxPendingBytes);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param sender identifies the sender so transfer ids need only be unique per sender
+     * @param length length of the whole body
+     * @param offset where this chunk goes in the body
+     * @return the whole body once this chunk completes it, otherwise null
+     * @throws IllegalArgumentException if the body is too large or the chunk does not fit it
+     */
+    synchronized byte[] add(String sender, long transferId, int length, int offset, byte[] chunk, int chunkLength) {
+        if(length < 0 || length > maxTransferBytes) {
+            throw new IllegalArgumentException("Transfer of "+length+" bytes exceeds limit of "+maxTransferBytes);
+        }
+        if(offset < 0 || chunkLength < 1 || chunkLength > length - offset) {
+            throw new IllegalArgumentException("Chunk at "+offset+" of "+chunkLength+" bytes does not fit transfer of "+length);
+        }
+        long now = System.currentTimeMillis();
+        purge(now);
+        String key = sender + ":" + transferId;
+        Transfer transfer = transfers.get(key);
+        if(transfer == null) {
+            makeRoom(length);
+            transfer = new Transfer(length);
+            transfers.put(key, transfer);
+            pendingBytes += length;
+        } else if(transfer.body.length != length) {
+            throw new IllegalArgumentException("Transfer length changed from "+transfer.body.length+" to "+length);
+        }
+        transfer.lastChunkAt = now;
+        Integer previous = transfer.chunks.get(offset);
+        if(previous == null) {
+            System.arraycopy(chunk, 0, transfer.body, offset, chunkLength);
+            transfer.chunks.put(offset, chunkLength);
+            transfer.received += chunkLength;
+        } else if(previous != chunkLength) {
+            throw new IllegalArgumentException("Chunk at "+offset+" resent with different length");
+        }
+        if(transfer.received < length) {
+            return null;
+        }
+        transfers.remove(key);
+        pendingBytes -= length;
+        return transfer.body;
+    }
+
+    synchronized int pending() {
+        return transfers.size();
+    }
+
+    synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    private void purge(long now) {
+        Iterator<Transfer> i = transfers.values().iterator();
+        while(i.hasNext()) {
+            Transfer transfer = i.next();
+            if(now - transfer.lastChunkAt > timeoutMs) {
+                i.remove();
+                pendingBytes -= transfer.body.length;
+                LOG.info("Dropped chunked transfer idle for over "+timeoutMs+"ms with "+transfer.received+" of "+transfer.body.length+" bytes.");
+            }
+        }
+    }
+
+    private void makeRoom(int length) {
+        while(pendingBytes + length > maxPendingBytes && !transfers.isEmpty()) {
+            String oldest = null;
+            long oldestAt = Long.MAX_VALUE;
+            for(Map.Entry<String, Transfer> e : transfers.entrySet()) {
+                if(e.getValue().lastChunkAt < oldestAt) {
+                    oldest = e.getKey();
+                    oldestAt = e.getValue().lastChunkAt;
+                }
+            }
+            Transfer dropped = transfers.remove(oldest);
+            pendingBytes -= dropped.body.length;
+            LOG.warning("Dropped chunked transfer "+oldest+" to make room for a new one.");
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ra.bluetooth;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Per device circuit breakers, so sends to a peer out of range fail fast instead of each waiting out the stack's
+ * connect timeout.
+ *
+ * Failed connects and sends count against the device's address, while sends that never reached it, e.g. for want
+ * of a free session, count neither way; after failureThreshold failures in a row, or at once when a
+ * service search finds it not reachable, its circuit opens and sends to it are refused for the backoff. The first
+ * send after the backoff is let through as a trial: success closes the circuit, failure opens it again for twice the
+ * backoff, up to the max.
+ */
+final class CircuitBreakers {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreakers.class.getName());
+
+    private final int failureThreshold;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+    private final MetricsRegistry metrics;
+    // Devices with failures, least recently touched first; a device not in here has a closed circuit
+    private final Map<String, Breaker> breakers;
+
+    private static final class Breaker {
+        private int failures;
+        private long backoffMs;
+        // While open; 0 when closed
+        private long openUntil;
+        private boolean trialInFlight;
+    }
+
+    /**
+     * @param maxDevices devices tracked, least recently failed forgotten first
+     */
+    CircuitBreakers(int failureThreshold, long baseBackoffMs, long maxBackoffMs, int maxDevices, MetricsRegistry metrics) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseBackoffMs = Math.max(1, baseBackoffMs);
+        this.maxBackoffMs = Math.max(this.baseBackoffMs, maxBackoffMs);
+        this.metrics = metrics;
+        breakers = new LinkedHashMap<String, Breaker>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Breaker> eldest) {
+                return size() > Math.max(1, maxDevices);
+            }
+        };
+    }
+
+    /**
+     * @return true while the circuit is open and not yet due for a trial
+     */
+    synchronized boolean isOpen(String address) {
+        Breaker breaker = breakers.get(address);
+        return breaker != null && breaker.openUntil != 0
+                && (System.currentTimeMillis() < breaker.openUntil || breaker.trialInFlight);
+    }
+
+    /**
+     * Ask to send to the device, starting the trial if the backoff is over. A caller let through must report
+     * the outcome with {@link #success(String)}, {@link #failure(String)} or {@link #cancelled(String)}.
+     * @return false if the circuit is open
+     */
+    synchronized boolean allow(String address) {
+        Breaker breaker = breakers.get(address);
+        if(breaker == null || breaker.openUntil == 0) {
+            return true;
+        }
+        if(breaker.trialInFlight || System.currentTimeMillis() < breaker.openUntil) {
+            metrics.count(MetricsRegistry.CIRCUIT_REJECTED, 1);
+            return false;
+        }
+        breaker.trialInFlight = true;
+        return true;
+    }
+
+    synchronized void success(String address) {
+        if(breakers.remove(address) != null) {
+            LOG.fine("Circuit to "+address+" closed.");
+        }
+    }
+
+    /**
+     * A send let through did not get as far as the device; a trial it started is left to the next send.
+     */
+    synchronized void cancelled(String address) {
+        Breaker breaker = breakers.get(address);
+        if(breaker != null) {
+            breaker.trialInFlight = false;
+        }
+    }
+
+    synchronized void failure(String address) {
+        Breaker breaker = breaker(address);
+        if(breaker.openUntil != 0) {
+            // Failures of sends started before the circuit opened do not extend it
+            if(backoffOver(breaker)) {
+                open(address, breaker);
+            }
+            return;
+        }
+        if(++breaker.failures >= failureThreshold) {
+            open(address, breaker);
+        }
+    }
+
+    /**
+     * A service search found the device not reachable; open its circuit without waiting for sends to fail.
+     */
+    synchronized void unreachable(String address) {
+        Breaker breaker = breaker(address);
+        if(breaker.openUntil == 0 || backoffOver(breaker)) {
+            open(address, breaker);
+        }
+    }
+
+    /**
+     * @return true once the trial started or is due
+     */
+    private static boolean backoffOver(Breaker breaker) {
+        return breaker.trialInFlight || System.currentTimeMillis() >= breaker.openUntil;
+    }
+
+    /**
+     * @return milliseconds until the next trial by address of the devices whose circuit is open
+     */
+    synchronized Map<String, Long> openCircuits() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> open = new HashMap<>();
+        for(Map.Entry<String, Breaker> e : breakers.entrySet()) {
+            if(e.getValue().openUntil != 0) {
+                open.put(e.getKey(), Math.max(0, e.getValue().openUntil - now));
+            }
+        }
+        return open;
+    }
+
+    private Breaker breaker(String address) {
+        Breaker breaker = breakers.get(address);
+        if(breaker == null) {
+            breaker = new Breaker();
+            breakers.put(address, breaker);
+        }
+        return breaker;
+    }
+
+    private void open(String address, Breaker breaker) {
+        // Double the backoff each time the circuit opens again without a success in between
+        breaker.backoffMs = breaker.backoffMs == 0 ? baseBackoffMs : Math.min(maxBackoffMs, breaker.backoffMs * 2);
+        breaker.openUntil = System.currentTimeMillis() + breaker.backoffMs;
+        breaker.trialInFlight = false;
+        metrics.count(MetricsRegistry.CIRCUIT_OPENED, 1);
+        LOG.info("Circuit to "+address+" open for "+breaker.backoffMs+"ms.");
+    }
+}
@@ -0,0 +1,134 @@
+package ra.bluetooth;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Body compressions negotiated per session through the APPLICATION_PARAMETER header.
+ */
+enum Compression {
+
+    NONE(0),
+    DEFLATE(1);
+
+    private final int id;
+
+    Compression(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int mask() {
+        return 1 << id;
+    }
+
+    /**
+     * @return compressed copy of the payload
+     */
+    byte[] compress(byte[] payload, int level) {
+        if(this == NONE) {
+            return payload;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, payload.length / 2)];
+            int length = 0;
+            while(!deflater.finished()) {
+                if(length == out.length) {
+                    out = Arrays.copyOf(out, out.length << 1);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress into a new pooled buffer. The input buffer is left to the caller to release.
+     * @param maxLength most bytes the body may inflate to
+     * @throws BufferPool.TooLargeException if it inflates to more
+     */
+    BufferPool.Bytes decompress(BufferPool pool, byte[] buf, int length, int maxLength) throws IOException {
+        if(this == NONE) {
+            if(length > maxLength) {
+                throw new BufferPool.TooLargeException(maxLength);
+            }
+            byte[] copy = pool.acquire(length);
+            System.arraycopy(buf, 0, copy, 0, length);
+            return pool.wrap(copy, length);
+        }
+        Inflater inflater = new Inflater();
+        byte[] out = pool.acquire((int)Math.max(1, Math.min(length * 4L, maxLength)));
+        int limit = Math.min(out.length, maxLength);
+        int outLength = 0;
+        try {
+            inflater.setInput(buf, 0, length);
+            while(!inflater.finished()) {
+                if(outLength == limit) {
+                    if(limit >= maxLength) {
+                        // Full; only the end of the stream may be left
+                        if(inflater.inflate(new byte[1]) > 0) {
+                            throw new BufferPool.TooLargeException(maxLength);
+                        }
+                        if(inflater.finished()) {
+                            break;
+                        }
+                        if(inflater.needsInput() || inflater.needsDictionary()) {
+                            throw new IOException("Truncated compressed body.");
+                        }
+                        continue;
+                    }
+                    byte[] larger = pool.acquire(outLength + 1);
+                    System.arraycopy(out, 0, larger, 0, outLength);
+                    pool.release(out);
+                    out = larger;
+                    limit = Math.min(out.length, maxLength);
+                }
+                int n = inflater.inflate(out, outLength, limit - outLength);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed body.");
+                }
+                outLength += n;
+            }
+        } catch (DataFormatException e) {
+            pool.release(out);
+            throw new IOException("Corrupt compressed body: "+e.getLocalizedMessage());
+        } catch (IOException e) {
+            pool.release(out);
+            throw e;
+        } finally {
+            inflater.end();
+        }
+        return pool.wrap(out, outLength);
+    }
+
+    static Compression fromId(int id) {
+        for(Compression c : values()) {
+            if(c.id == id) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return best compression present in the bitmask, NONE if none are
+     */
+    static Compression select(int mask) {
+        return (mask & DEFLATE.mask()) != 0 ? DEFLATE : NONE;
+    }
+
+    static int supportedMask() {
+        return NONE.mask() | DEFLATE.mask();
+    }
+}
@@ -0,0 +1,85 @@
+package ra.bluetooth;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory metrics read by the service's MBean. Tagged counters are kept per tag under their name, up to maxTags
+ * tags per name; counts for further tags are kept under {@link #OTHER}.
+ */
+final class DefaultMetricsRegistry implements MetricsRegistry {
+
+    static final String OTHER = "other";
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, LongAdder>> tagged = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final int maxTags;
+
+    DefaultMetricsRegistry() {
+        this(1024);
+    }
+
+    DefaultMetricsRegistry(int maxTags) {
+        this.maxTags = Math.max(1, maxTags);
+    }
+
+    @Override
+    public void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void count(String name, String tag, long delta) {
+        count(name, delta);
+        Map<String, LongAdder> byTag = tagged.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        String key = String.valueOf(tag);
+        LongAdder adder = byTag.get(key);
+        if(adder == null) {
+            // Tags may come from peers, so their number is bounded
+            adder = byTag.computeIfAbsent(byTag.size() < maxTags ? key : OTHER, k -> new LongAdder());
+        }
+        adder.add(delta);
+    }
+
+    @Override
+    public void record(String name, long value) {
+        histograms.computeIfAbsent(name, k -> new Histogram()).record(value);
+    }
+
+    Map<String, Long> counters() {
+        return sums(counters);
+    }
+
+    /**
+     * @return the counter's totals by tag
+     */
+    Map<String, Long> counters(String name) {
+        Map<String, LongAdder> byTag = tagged.get(name);
+        return byTag == null ? new TreeMap<>() : sums(byTag);
+    }
+
+    Map<String, HistogramSnapshot> histograms() {
+        Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+        for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    void reset() {
+        counters.clear();
+        tagged.clear();
+        histograms.clear();
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+        Map<String, Long> sums = new TreeMap<>();
+        for(Map.Entry<String, LongAdder> e : adders.entrySet()) {
+            sums.put(e.getKey(), e.getValue().sum());
+        }
+        return sums;
+    }
+}
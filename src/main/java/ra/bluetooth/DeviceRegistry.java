@@ -0,0 +1,176 @@
+package ra.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe, bounded registry of values per Bluetooth device, keyed by the 48-bit address packed into a long.
+ *
+ * Reads never lock so the send path is not held up by discovery callbacks. Each entry records when its device
+ * was last seen; entries not seen within the TTL are dropped and, when the registry is full, the least recently
+ * seen entries make room for new ones.
+ */
+class DeviceRegistry<V> {
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final Map<Long, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    DeviceRegistry(int maxSize, long ttlMs) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Pack a Bluetooth address, as 12 hex digits with or without ':' separators, into the low 48 bits of a long.
+     * @throws IllegalArgumentException if the address is not a Bluetooth address
+     */
+    static long pack(String address) {
+        if(address == null) {
+            throw new IllegalArgumentException("Bluetooth address is null.");
+        }
+        long packed = 0;
+        int digits = 0;
+        for(int i=0; i<address.length(); i++) {
+            char c = address.charAt(i);
+            if(c == ':') {
+                continue;
+            }
+            int d = Character.digit(c, 16);
+            if(d < 0 || ++digits > 12) {
+                throw new IllegalArgumentException("Invalid Bluetooth address: "+address);
+            }
+            packed = (packed << 4) | d;
+        }
+        if(digits != 12) {
+            throw new IllegalArgumentException("Invalid Bluetooth address: "+address);
+        }
+        return packed;
+    }
+
+    /**
+     * @return address in the form BlueCove reports it: 12 upper case hex digits
+     */
+    static String unpack(long address) {
+        char[] c = new char[12];
+        for(int i=11; i>=0; i--) {
+            c[i] = Character.toUpperCase(Character.forDigit((int)(address & 0xF), 16));
+            address >>>= 4;
+        }
+        return new String(c);
+    }
+
+    /**
+     * @return value for the device or null if unknown or not seen within the TTL
+     */
+    V get(String address) {
+        Entry<V> entry = entries.get(pack(address));
+        if(entry == null || expired(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    boolean contains(String address) {
+        return get(address) != null;
+    }
+
+    /**
+     * Add or replace the device's value, marking it seen now.
+     * @return the previous live value, if any
+     */
+    V put(String address, V value) {
+        long now = System.currentTimeMillis();
+        Entry<V> previous = entries.put(pack(address), new Entry<>(value, now));
+        if(entries.size() > maxSize) {
+            evictLeastRecentlySeen();
+        }
+        return previous == null || expired(previous, now) ? null : previous.value;
+    }
+
+    /**
+     * Mark the device as seen now.
+     * @return false if the device is not in the registry
+     */
+    boolean touch(String address) {
+        Entry<V> entry = entries.get(pack(address));
+        if(entry == null) {
+            return false;
+        }
+        entry.lastSeen = System.currentTimeMillis();
+        return true;
+    }
+
+    V remove(String address) {
+        Entry<V> entry = entries.remove(pack(address));
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * @return values of the live entries
+     */
+    List<V> values() {
+        long now = System.currentTimeMillis();
+        List<V> values = new ArrayList<>(entries.size());
+        for(Entry<V> entry : entries.values()) {
+            if(!expired(entry, now)) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Drop the entries not seen within the TTL.
+     * @return number of entries dropped
+     */
+    int evictExpired() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for(Map.Entry<Long, Entry<V>> e : entries.entrySet()) {
+            if(expired(e.getValue(), now) && entries.remove(e.getKey(), e.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private boolean expired(Entry<V> entry, long now) {
+        return ttlMs > 0 && now - entry.lastSeen > ttlMs;
+    }
+
+    private synchronized void evictLeastRecentlySeen() {
+        evictExpired();
+        // Trim to a little under the limit so a full registry is not scanned on every put
+        int excess = entries.size() - maxSize * 9 / 10;
+        if(excess <= 0) {
+            return;
+        }
+        // Sort a snapshot of the timestamps as they may be touched while sorting
+        List<long[]> seen = new ArrayList<>(entries.size());
+        for(Map.Entry<Long, Entry<V>> e : entries.entrySet()) {
+            seen.add(new long[]{e.getValue().lastSeen, e.getKey()});
+        }
+        seen.sort((a, b) -> Long.compare(a[0], b[0]));
+        for(int i=0; i<excess && i<seen.size(); i++) {
+            entries.remove(seen.get(i)[1]);
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private volatile long lastSeen;
+
+        private Entry(V value, long lastSeen) {
+            this.value = value;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ra.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Moves discovery processing off the stack's callback threads.
+ *
+ * Callbacks publish the work to a bounded ring buffer and return; worker threads do the processing. Each device
+ * address always lands on the same worker, so a device's events are handled in the order they arrived. When a
+ * worker falls behind its ring fills and further events for it are dropped and counted, so a callback never
+ * waits on downstream work.
+ */
+final class DiscoveryEvents {
+
+    private static final Logger LOG = Logger.getLogger(DiscoveryEvents.class.getName());
+
+    private final BlockingQueue<Runnable>[] rings;
+    private final Thread[] workers;
+    private final MetricsRegistry metrics;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // Whether each ring dropped its last event, to warn once per overflow rather than per event
+    private final boolean[] overflowing;
+    private volatile boolean running = true;
+
+    /**
+     * @param workers worker threads, each with its own ring
+     * @param capacity events each ring holds
+     */
+    @SuppressWarnings("unchecked")
+    DiscoveryEvents(int workers, int capacity, MetricsRegistry metrics) {
+        this.metrics = metrics;
+        int count = Math.max(1, workers);
+        rings = new BlockingQueue[count];
+        this.workers = new Thread[count];
+        overflowing = new boolean[count];
+        for(int i=0; i<count; i++) {
+            BlockingQueue<Runnable> ring = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            rings[i] = ring;
+            Thread worker = new Thread(() -> drain(ring), "BluetoothSensor-DiscoveryEvents-"+i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * @param address device the event concerns; events for one device are processed in order
+     * @return false if the event was dropped because its ring is full or the pipeline is shut down
+     */
+    boolean publish(String address, Runnable event) {
+        if(!running) {
+            return false;
+        }
+        int i = (address.hashCode() & Integer.MAX_VALUE) % rings.length;
+        if(rings[i].offer(event)) {
+            published.increment();
+            metrics.count(MetricsRegistry.DISCOVERY_EVENTS, 1);
+            overflowing[i] = false;
+            return true;
+        }
+        dropped.increment();
+        metrics.count(MetricsRegistry.DISCOVERY_EVENTS_DROPPED, 1);
+        if(!overflowing[i]) {
+            overflowing[i] = true;
+            LOG.warning("Discovery events dropped; worker "+i+" is "+rings[i].size()+" events behind.");
+        }
+        return false;
+    }
+
+    long published() {
+        return published.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return events waiting across all rings
+     */
+    int depth() {
+        int depth = 0;
+        for(BlockingQueue<Runnable> ring : rings) {
+            depth += ring.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stop the workers, discarding events not yet processed.
+     */
+    void shutdown() {
+        running = false;
+        for(int i=0; i<rings.length; i++) {
+            rings[i].clear();
+            workers[i].interrupt();
+        }
+    }
+
+    private void drain(BlockingQueue<Runnable> ring) {
+        while(running) {
+            Runnable event;
+            try {
+                event = ring.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                LOG.warning("Discovery event failed: "+e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package ra.bluetooth;
+
+import ra.common.Envelope;
+import ra.common.JSONSerializable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary framing of Envelopes for the Bluetooth wire.
+ *
+ * Frame: magic 'R','A' | version | flags | value
+ * Batch frame: magic 'R','A' | version | flags with BATCH set | count | (length | frame) * count
+ *
+ * The value is the Envelope's map form encoded as tagged values: varint lengths and zig-zag varint numbers,
+ * with repeated strings (mostly map keys) sent once and then referenced by index.
+ */
+final class EnvelopeCodec {
+
+    static final byte MAGIC_0 = 'R';
+    static final byte MAGIC_1 = 'A';
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 4;
+
+    /** Frame carries several length-prefixed single-envelope frames. */
+    static final byte FLAG_BATCH = 0x01;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte STRING = 7;
+    private static final byte STRING_REF = 8;
+    private static final byte MAP = 9;
+    private static final byte LIST = 10;
+    private static final byte BYTES = 11;
+
+    // Maps and lists nested deeper than this are refused rather than recursed into
+    static final int MAX_DEPTH = 64;
+    // Counts in a frame are the sender's word; collections start no bigger than this and grow as entries are read
+    private static final int MAX_INITIAL_CAPACITY = 16;
+
+    private EnvelopeCodec() {}
+
+    static byte[] encode(Envelope envelope) {
+        Writer w = new Writer(512);
+        w.writeByte(MAGIC_0);
+        w.writeByte(MAGIC_1);
+        w.writeByte(VERSION);
+        w.writeByte(0); // flags
+        w.writeValue(envelope.toMap());
+        return w.toByteArray();
+    }
+
+    /**
+     * Pack already encoded single-envelope frames into one batch frame.
+     */
+    static byte[] encodeBatch(List<byte[]> frames) {
+        int size = HEADER_LENGTH + 5;
+        for(byte[] frame : frames) {
+            size += frame.length + 5;
+        }
+        Writer w = new Writer(size);
+        w.writeByte(MAGIC_0);
+        w.writeByte(MAGIC_1);
+        w.writeByte(VERSION);
+        w.writeByte(FLAG_BATCH);
+        w.writeVarLong(frames.size());
+        for(byte[] frame : frames) {
+            w.writeBytes(frame);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * Decode a single or batch frame.
+     * @return envelopes in the order they were framed
+     */
+    static List<Envelope> decodeAll(byte[] buf, int offset, int length) throws IOException {
+        checkHeader(buf, offset, length);
+        if((buf[offset+3] & FLAG_BATCH) == 0) {
+            Envelope envelope = Envelope.documentFactory();
+            decode(buf, offset, length, envelope);
+            return Collections.singletonList(envelope);
+        }
+        Reader r = new Reader(buf, offset + HEADER_LENGTH, offset + length);
+        int count = r.readLength();
+        List<Envelope> envelopes = new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            int frameLength = r.readLength();
+            Envelope envelope = Envelope.documentFactory();
+            decode(buf, r.pos, frameLength, envelope);
+            r.pos += frameLength;
+            envelopes.add(envelope);
+        }
+        return envelopes;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void decode(byte[] buf, int offset, int length, Envelope envelope) throws IOException {
+        checkHeader(buf, offset, length);
+        if((buf[offset+3] & FLAG_BATCH) != 0) {
+            throw new IOException("Expected a single envelope frame but found a batch.");
+        }
+        Reader r = new Reader(buf, offset + HEADER_LENGTH, offset + length);
+        Object value = r.readValue();
+        if(!(value instanceof Map)) {
+            throw new IOException("Binary envelope frame does not contain a map.");
+        }
+        envelope.fromMap((Map<String, Object>)value);
+    }
+
+    private static void checkHeader(byte[] buf, int offset, int length) throws IOException {
+        if(length < HEADER_LENGTH || buf[offset] != MAGIC_0 || buf[offset+1] != MAGIC_1) {
+            throw new IOException("Not a binary envelope frame.");
+        }
+        if(buf[offset+2] != VERSION) {
+            throw new IOException("Unsupported binary envelope version: "+buf[offset+2]);
+        }
+    }
+
+    static byte[] encodeValue(Object value) {
+        Writer w = new Writer(256);
+        w.writeValue(value);
+        return w.toByteArray();
+    }
+
+    static Object decodeValue(byte[] buf, int offset, int length) throws IOException {
+        return new Reader(buf, offset, offset + length).readValue();
+    }
+
+    private static final class Writer {
+
+        private byte[] buf;
+        private int pos = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if(pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + extra));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte)b;
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte)v;
+        }
+
+        private void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        private void writeFixed64(long v) {
+            ensure(8);
+            for(int i=56; i>=0; i-=8) {
+                buf[pos++] = (byte)(v >>> i);
+            }
+        }
+
+        private void writeBytes(byte[] b) {
+            writeVarLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void writeString(String s) {
+            Integer ref = strings.get(s);
+            if(ref != null) {
+                writeByte(STRING_REF);
+                writeVarLong(ref);
+                return;
+            }
+            strings.put(s, strings.size());
+            writeByte(STRING);
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeValue(Object value) {
+            if(value == null) {
+                writeByte(NULL);
+            } else if(value instanceof String) {
+                writeString((String)value);
+            } else if(value instanceof Boolean) {
+                writeByte((Boolean)value ? TRUE : FALSE);
+            } else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(INT);
+                writeZigZag(((Number)value).intValue());
+            } else if(value instanceof Long) {
+                writeByte(LONG);
+                writeZigZag((Long)value);
+            } else if(value instanceof Double) {
+                writeByte(DOUBLE);
+                writeFixed64(Double.doubleToRawLongBits((Double)value));
+            } else if(value instanceof Float) {
+                writeByte(FLOAT);
+                writeFixed64(Double.doubleToRawLongBits((Float)value));
+            } else if(value instanceof Map) {
+                Map<?, ?> m = (Map<?, ?>)value;
+                writeByte(MAP);
+                writeVarLong(m.size());
+                for(Map.Entry<?, ?> e : m.entrySet()) {
+                    writeString(String.valueOf(e.getKey()));
+                    writeValue(e.getValue());
+                }
+            } else if(value instanceof Collection) {
+                Collection<?> c = (Collection<?>)value;
+                writeByte(LIST);
+                writeVarLong(c.size());
+                for(Object o : c) {
+                    writeValue(o);
+                }
+            } else if(value instanceof byte[]) {
+                writeByte(BYTES);
+                writeBytes((byte[])value);
+            } else if(value instanceof Object[]) {
+                writeValue(Arrays.asList((Object[])value));
+            } else if(value instanceof JSONSerializable) {
+                writeValue(((JSONSerializable)value).toMap());
+            } else if(value instanceof Enum) {
+                writeString(((Enum<?>)value).name());
+            } else {
+                writeString(value.toString());
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+        private final List<String> strings = new ArrayList<>();
+        // Maps and lists being read
+        private int depth;
+
+        private Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        private byte readByte() throws IOException {
+            if(pos >= limit) {
+                throw new IOException("Truncated binary envelope frame.");
+            }
+            return buf[pos++];
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            for(int shift=0; shift<64; shift+=7) {
+                byte b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint in binary envelope frame.");
+        }
+
+        private int readLength() throws IOException {
+            long len = readVarLong();
+            if(len < 0 || len > limit - pos) {
+                throw new IOException("Invalid length in binary envelope frame: "+len);
+            }
+            return (int)len;
+        }
+
+        private long readZigZag() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private long readFixed64() throws IOException {
+            long v = 0;
+            for(int i=0; i<8; i++) {
+                v = (v << 8) | (readByte() & 0xFF);
+            }
+            return v;
+        }
+
+        private String readString(byte tag) throws IOException {
+            if(tag == STRING_REF) {
+                long ref = readVarLong();
+                if(ref < 0 || ref >= strings.size()) {
+                    throw new IOException("Invalid string reference in binary envelope frame: "+ref);
+                }
+                return strings.get((int)ref);
+            }
+            if(tag != STRING) {
+                throw new IOException("Expected string in binary envelope frame, found tag: "+tag);
+            }
+            int len = readLength();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            strings.add(s);
+            return s;
+        }
+
+        private Object readValue() throws IOException {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL: return null;
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case INT: return (int)readZigZag();
+                case LONG: return readZigZag();
+                case DOUBLE: return Double.longBitsToDouble(readFixed64());
+                case FLOAT: return (float)Double.longBitsToDouble(readFixed64());
+                case STRING:
+                case STRING_REF: return readString(tag);
+                case MAP: {
+                    enter();
+                    int size = readLength();
+                    Map<String, Object> m = new HashMap<>(Math.min(size, MAX_INITIAL_CAPACITY) * 4 / 3 + 1);
+                    for(int i=0; i<size; i++) {
+                        String key = readString(readByte());
+                        m.put(key, readValue());
+                    }
+                    depth--;
+                    return m;
+                }
+                case LIST: {
+                    enter();
+                    int size = readLength();
+                    List<Object> l = new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY));
+                    for(int i=0; i<size; i++) {
+                        l.add(readValue());
+                    }
+                    depth--;
+                    return l;
+                }
+                case BYTES: {
+                    int len = readLength();
+                    byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+                    pos += len;
+                    return b;
+                }
+                default: throw new IOException("Unknown tag in binary envelope frame: "+tag);
+            }
+        }
+
+        private void enter() throws IOException {
+            if(++depth > MAX_DEPTH) {
+                throw new IOException("Binary envelope frame nested deeper than "+MAX_DEPTH+" levels.");
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ra.bluetooth;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers the ids of recently received envelopes so copies relayed by several neighbors are dropped.
+ *
+ * Ids are kept as 64 bit hashes in two generations: new ids go into the current one, and when it has been filling
+ * for the window or holds half of maxIds it becomes the previous one and the old previous one is forgotten. An id is
+ * so remembered for between one and two windows, and never more than maxIds are held.
+ */
+final class EnvelopeDeduplicator {
+
+    private final int maxGenerationIds;
+    private final long windowMs;
+
+    private Set<Long> current = new HashSet<>();
+    private Set<Long> previous = new HashSet<>();
+    private long generationStart = System.currentTimeMillis();
+
+    /**
+     * @param maxIds ids remembered at most
+     * @param windowMs time an id is at least remembered unless maxIds is reached first
+     */
+    EnvelopeDeduplicator(int maxIds, long windowMs) {
+        this.maxGenerationIds = Math.max(1, maxIds / 2);
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the id.
+     */
+    static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for(int i=0; i<id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Remember the id.
+     * @return true if it was not seen within the window; ids that are null are always new
+     */
+    boolean firstSeen(String id) {
+        return id == null || firstSeen(hash(id));
+    }
+
+    synchronized boolean firstSeen(long hash) {
+        rotate();
+        if(current.contains(hash) || previous.contains(hash)) {
+            return false;
+        }
+        if(current.size() >= maxGenerationIds) {
+            nextGeneration();
+        }
+        current.add(hash);
+        return true;
+    }
+
+    /**
+     * Forget the id, e.g. when the envelope it was first seen with could not be handed on, so copies are taken.
+     */
+    void forget(String id) {
+        if(id != null) {
+            forget(hash(id));
+        }
+    }
+
+    synchronized void forget(long hash) {
+        current.remove(hash);
+        previous.remove(hash);
+    }
+
+    /**
+     * @return true if every hash was seen within the window, without remembering them
+     */
+    synchronized boolean allSeen(long[] hashes) {
+        rotate();
+        for(long hash : hashes) {
+            if(!current.contains(hash) && !previous.contains(hash)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return current.size() + previous.size();
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if(now - generationStart >= windowMs) {
+            if(now - generationStart >= 2 * windowMs) {
+                // Idle for long enough that the current generation is out of the window too
+                current.clear();
+            }
+            nextGeneration();
+        }
+    }
+
+    private void nextGeneration() {
+        Set<Long> forgotten = previous;
+        previous = current;
+        forgotten.clear();
+        current = forgotten;
+        generationStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Pack the hashes for the {@link AppParameters#ENVELOPE_IDS} parameter.
+     * @return null if they do not fit in one parameter
+     */
+    static byte[] toBytes(long[] hashes) {
+        if(hashes.length == 0 || hashes.length * 8 > 255) {
+            return null;
+        }
+        byte[] b = new byte[hashes.length * 8];
+        for(int i=0; i<hashes.length; i++) {
+            for(int j=0; j<8; j++) {
+                b[i * 8 + j] = (byte)(hashes[i] >>> (56 - 8 * j));
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @param value {@link AppParameters#ENVELOPE_IDS} parameter; may be null
+     * @return the hashes or null if absent or malformed
+     */
+    static long[] fromBytes(byte[] value) {
+        if(value == null || value.length == 0 || value.length % 8 != 0) {
+            return null;
+        }
+        long[] hashes = new long[value.length / 8];
+        for(int i=0; i<hashes.length; i++) {
+            long h = 0;
+            for(int j=0; j<8; j++) {
+                h = (h << 8) | (value[i * 8 + j] & 0xFF);
+            }
+            hashes[i] = h;
+        }
+        return hashes;
+    }
+}
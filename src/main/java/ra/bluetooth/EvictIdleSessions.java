@@ -0,0 +1,32 @@
+package ra.bluetooth;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+/**
+ * Periodically closes pooled sessions that have sat idle past their timeout, then has the prewarmer, if any,
+ * warm sessions to the peers in most use.
+ */
+public final class EvictIdleSessions extends BaseTask {
+
+    private final BluetoothSessionPool pool;
+    private final SessionPrewarmer prewarmer;
+
+    /**
+     * @param prewarmer may be null
+     */
+    EvictIdleSessions(TaskRunner taskRunner, BluetoothSessionPool pool, SessionPrewarmer prewarmer) {
+        super(EvictIdleSessions.class.getSimpleName(), taskRunner);
+        this.pool = pool;
+        this.prewarmer = prewarmer;
+    }
+
+    @Override
+    public Boolean execute() {
+        pool.evictIdle();
+        if(prewarmer != null) {
+            prewarmer.rewarm();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+package ra.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Resolves remote friendly names off the discovery callback thread and caches them per address.
+ *
+ * A remote name request is a blocking round trip over the air, so discovery asks for the cached name and carries on
+ * with the address if there is none yet; the name is delivered to the callbacks of everyone who asked once it
+ * arrives. Each address is requested at most once at a time.
+ */
+final class FriendlyNameResolver {
+
+    private static final Logger LOG = Logger.getLogger(FriendlyNameResolver.class.getName());
+
+    private final DeviceRegistry<String> names;
+    private final Map<String, List<Consumer<String>>> inFlight = new HashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param maxNames addresses whose names are cached
+     * @param ttlMs time a name is cached before it is requested again, 0 to keep it until evicted
+     * @param threads concurrent remote name requests
+     */
+    FriendlyNameResolver(int maxNames, long ttlMs, int threads) {
+        names = new DeviceRegistry<>(maxNames, ttlMs);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "BluetoothSensor-FriendlyNameResolver");
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * Seed the cache, e.g. with names kept in the peer store.
+     */
+    void put(String address, String name) {
+        if(name != null) {
+            try {
+                names.put(address, name);
+            } catch (IllegalArgumentException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the cached name or null
+     */
+    String cached(String address) {
+        return names.get(address);
+    }
+
+    /**
+     * Return the cached name, or null after queueing a request for it.
+     * @param onResolved called with the name on a resolver thread if it was not cached; not called if it cannot be resolved
+     */
+    String resolve(BluetoothStack.Device device, Consumer<String> onResolved) {
+        String address = device.getBluetoothAddress();
+        String name = names.get(address);
+        if(name != null) {
+            return name;
+        }
+        synchronized (inFlight) {
+            List<Consumer<String>> waiting = inFlight.get(address);
+            if(waiting != null) {
+                waiting.add(onResolved);
+                return null;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(onResolved);
+            inFlight.put(address, waiting);
+        }
+        try {
+            executor.execute(() -> request(device));
+        } catch (RejectedExecutionException e) {
+            synchronized (inFlight) {
+                inFlight.remove(address);
+            }
+        }
+        return null;
+    }
+
+    private void request(BluetoothStack.Device device) {
+        String address = device.getBluetoothAddress();
+        String name = null;
+        try {
+            // The stack may already know it from the inquiry response
+            name = device.getFriendlyName(false);
+            if(name == null || name.isEmpty()) {
+                name = device.getFriendlyName(true);
+            }
+        } catch (IOException e) {
+            LOG.info("Unable to resolve name of "+address+": "+e.getLocalizedMessage());
+        }
+        if(name != null && !name.isEmpty()) {
+            put(address, name);
+        } else {
+            name = null;
+        }
+        List<Consumer<String>> waiting;
+        synchronized (inFlight) {
+            waiting = inFlight.remove(address);
+        }
+        if(name != null && waiting != null) {
+            for(Consumer<String> callback : waiting) {
+                try {
+                    callback.accept(name);
+                } catch (RuntimeException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (inFlight) {
+            inFlight.clear();
+        }
+    }
+}
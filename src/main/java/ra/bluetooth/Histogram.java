@@ -0,0 +1,55 @@
+package ra.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets.
+ * Percentiles are the upper bound of the bucket they fall in, so within a factor of two.
+ */
+final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for(int i=0; i<BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long max = this.max.get();
+        return new HistogramSnapshot(total, total == 0 ? 0 : sum.sum() / total,
+                percentile(counts, total, 0.5, max), percentile(counts, total, 0.9, max),
+                percentile(counts, total, 0.99, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, double p, long max) {
+        long rank = (long)Math.ceil(total * p);
+        long seen = 0;
+        for(int i=0; i<BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= rank && seen > 0) {
+                // Bucket i holds values below 2^i
+                return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+}
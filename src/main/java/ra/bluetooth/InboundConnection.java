@@ -0,0 +1,320 @@
+package ra.bluetooth;
+
+import ra.common.Envelope;
+import ra.common.network.NetworkPeer;
+import ra.common.route.ExternalRoute;
+import ra.common.route.SimpleRoute;
+
+import javax.obex.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Handles the requests of one inbound OBEX connection, holding what was agreed on its CONNECT.
+ */
+final class InboundConnection extends ServerRequestHandler {
+
+    private static final Logger LOG = Logger.getLogger(InboundConnection.class.getName());
+
+    private final BluetoothService service;
+    // Remote peer id from its CONNECT, once it has connected
+    private volatile String peerId;
+    // Device address of the remote, once the connection is accepted; tags its metrics like those of our sessions
+    private volatile String remoteAddress;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+
+    InboundConnection(BluetoothService service) {
+        this.service = service;
+    }
+
+    String peerId() {
+        return peerId;
+    }
+
+    void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Wait until the remote disconnects, the transport closes or the connection has been idle for the timeout.
+     * @param open checked every checkMs; false once the transport closed
+     * @return true if the remote disconnected or the transport closed
+     */
+    boolean awaitEnd(long idleTimeoutMs, long checkMs, BooleanSupplier open) throws InterruptedException {
+        long idle;
+        while((idle = System.currentTimeMillis() - lastActivity) < idleTimeoutMs) {
+            if(disconnected.await(Math.min(checkMs, idleTimeoutMs - idle), TimeUnit.MILLISECONDS) || !open.getAsBoolean()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public int onConnect(HeaderSet request, HeaderSet reply) {
+        LOG.info("Inbound Connection request...");
+        touch();
+        try {
+            String id = (String)request.getHeader(HeaderSet.NAME);
+            LOG.info("id="+id);
+            peerId = id;
+            WireFormat format = WireFormat.negotiate((String)request.getHeader(HeaderSet.TYPE));
+            if(format != null) {
+                reply.setHeader(HeaderSet.TYPE, format.getType());
+            }
+            AppParameters params = AppParameters.parse((byte[])request.getHeader(HeaderSet.APPLICATION_PARAMETER));
+            AppParameters accepted = new AppParameters();
+            if(params.contains(AppParameters.SUPPORTED_COMPRESSION)) {
+                // We can always inflate, whatever our own outbound setting
+                accepted.putByte(AppParameters.SUPPORTED_COMPRESSION,
+                        params.getByte(AppParameters.SUPPORTED_COMPRESSION, 0) & Compression.supportedMask());
+            }
+            if(params.getByte(AppParameters.SUPPORTED_CHUNKING, 0) == 1) {
+                accepted.putByte(AppParameters.SUPPORTED_CHUNKING, 1);
+                accepted.putInt(AppParameters.MAX_CHUNK_SIZE, service.chunkSize);
+            }
+            if(params.getByte(AppParameters.SUPPORTED_PEER_DELTA, 0) == 1) {
+                accepted.putByte(AppParameters.SUPPORTED_PEER_DELTA, 1);
+            }
+            if(!accepted.isEmpty()) {
+                reply.setHeader(HeaderSet.APPLICATION_PARAMETER, accepted.toBytes());
+            }
+            // TODO: Send peer to Peer Manager
+            Envelope e = Envelope.documentFactory();
+            e.setRoute(new SimpleRoute());
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Not supported, but answered so liveness probes keep the connection open.
+     */
+    @Override
+    public int onSetPath(HeaderSet request, HeaderSet reply, boolean backup, boolean create) {
+        touch();
+        return ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED;
+    }
+
+    /**
+     * Received a put operation pushing data to this peer.
+     * @param op
+     * @return
+     */
+    public int onPut(Operation op) {
+        LOG.info("Received Put Operation: "+op.toString());
+        touch();
+        long start = System.nanoTime();
+        service.metrics.count(MetricsRegistry.PUT_RECEIVED, 1);
+        try {
+            HeaderSet hs = op.getReceivedHeaders();
+            String name = (String) hs.getHeader(HeaderSet.NAME);
+            if (name != null) {
+                LOG.info("put name:" + name);
+            }
+
+            AppParameters params = AppParameters.parse((byte[]) hs.getHeader(HeaderSet.APPLICATION_PARAMETER));
+            if(!params.isEmpty()) {
+                LOG.info("headers: "+params);
+            }
+            Compression compression = Compression.fromId(params.getByte(AppParameters.COMPRESSION, Compression.NONE.getId()));
+            if(compression == null) {
+                LOG.warning("Unsupported compression requested: "+params.getByte(AppParameters.COMPRESSION, -1));
+                return ResponseCodes.OBEX_HTTP_UNSUPPORTED_TYPE;
+            }
+
+            WireFormat format = WireFormat.fromType((String) hs.getHeader(HeaderSet.TYPE));
+            List<Envelope> envelopes;
+            if(params.contains(AppParameters.TRANSFER_ID)) {
+                byte[] body = readChunk(op, name, params);
+                if(body == null) {
+                    // More chunks to come
+                    op.close();
+                    return ResponseCodes.OBEX_HTTP_ACCEPTED;
+                }
+                envelopes = BluetoothSession.decodeEnvelopes(service.bufferPool, body, body.length, format, compression, service.maxBodyBytes);
+            } else {
+                long[] ids = EnvelopeDeduplicator.fromBytes(params.get(AppParameters.ENVELOPE_IDS));
+                if(ids != null && service.deduplicator.allSeen(ids)) {
+                    // Relayed copies of envelopes already received; not worth reading
+                    LOG.info("Dropping put of "+ids.length+" already received envelopes from "+name);
+                    service.metrics.count(MetricsRegistry.INBOUND_DUPLICATES, ids.length);
+                    op.close();
+                    return ResponseCodes.OBEX_HTTP_OK;
+                }
+                envelopes = BluetoothSession.readEnvelopes(service.bufferPool, op, format, compression, service.maxBodyBytes,
+                        bytes -> service.metrics.count(MetricsRegistry.BYTES_IN, remoteAddress, bytes));
+            }
+            // Answered once queued; the bus gets the envelopes from the inbound dispatcher. Peer list changes not
+            // handed on are refused, so the sender does not build its next changes on them
+            int response = ResponseCodes.OBEX_HTTP_OK;
+            for(Envelope envelope : envelopes) {
+                boolean delta = PeerExchange.isDelta(envelope.getContent());
+                if(!service.deduplicator.firstSeen(envelope.getId())) {
+                    service.metrics.count(MetricsRegistry.INBOUND_DUPLICATES, 1);
+                    if(delta) {
+                        LOG.info("Refusing peer list changes from "+name+" in an envelope already received.");
+                        response = ResponseCodes.OBEX_HTTP_CONFLICT;
+                    }
+                    continue;
+                }
+                expandPeerDelta(envelope);
+                peersReceived(envelope);
+                LOG.info("Put received:" + envelope.toJSON());
+                if(!service.inboundQueue.offer(envelope)) {
+                    // Dead lettered; let a retry or another neighbor's copy through
+                    service.deduplicator.forget(envelope.getId());
+                    if(delta) {
+                        response = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+                    }
+                }
+            }
+
+            op.close();
+            return response;
+        } catch (IllegalArgumentException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } catch (BufferPool.TooLargeException e) {
+            LOG.warning("Refusing put from "+peerId+": "+e.getLocalizedMessage());
+            return ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+        } finally {
+            service.metrics.record(MetricsRegistry.PUT_HANDLE_TIME, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Add the chunk in the operation body to its transfer.
+     * @return the whole body once this chunk completes it, otherwise null
+     * @throws IllegalArgumentException if the chunk does not fit its transfer
+     */
+    private byte[] readChunk(Operation op, String sender, AppParameters params) throws IOException {
+        try (InputStream is = op.openInputStream();
+             BufferPool.Bytes chunk = service.bufferPool.readFully(is, op.getLength(), service.chunkSize)) {
+            service.metrics.count(MetricsRegistry.BYTES_IN, remoteAddress, chunk.length());
+            return service.chunkReassembler.add(sender,
+                    params.getLong(AppParameters.TRANSFER_ID, 0),
+                    params.getInt(AppParameters.TRANSFER_LENGTH, -1),
+                    params.getInt(AppParameters.CHUNK_OFFSET, -1),
+                    chunk.array(), chunk.length());
+        }
+    }
+
+    /**
+     * Received a Get operation asking for data from this peer.
+     * @param op
+     * @return
+     */
+    @Override
+    public int onGet(Operation op) {
+        LOG.info("Received Get Operation: "+op.toString());
+        touch();
+        long start = System.nanoTime();
+        service.metrics.count(MetricsRegistry.GET_RECEIVED, 1);
+        try {
+            HeaderSet hs = op.getReceivedHeaders();
+            String name = (String) hs.getHeader(HeaderSet.NAME);
+            if (name != null) {
+                LOG.info("get name: " + name);
+            }
+
+            List<Envelope> envelopes = BluetoothSession.readEnvelopes(service.bufferPool, op, WireFormat.fromType((String) hs.getHeader(HeaderSet.TYPE)), Compression.NONE,
+                    service.maxBodyBytes, bytes -> service.metrics.count(MetricsRegistry.BYTES_IN, remoteAddress, bytes));
+            if(envelopes.size() != 1) {
+                LOG.warning("Get Request must carry exactly one envelope; received: "+envelopes.size());
+                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            }
+            Envelope envelope = envelopes.get(0);
+            expandPeerDelta(envelope);
+            peersReceived(envelope);
+            LOG.info("Get Request:" + envelope.toJSON());
+            if(envelope.markerPresent(PeerExchange.MARKER_REQUEST)) {
+                ExternalRoute er = (ExternalRoute)envelope.getRoute();
+                LOG.info("Received NetOpReq id: "+envelope.getId().substring(0,7)+"... from: "+er.getOrigination().getDid().getPublicKey().getFingerprint().substring(0,7));
+                List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getContent();
+                if (recommendedPeers != null) {
+                    LOG.info(recommendedPeers.size() + " Known Peers Received.");
+                    // TODO: Send to Network Manager Service
+                }
+                // TODO: Request from Network Manager Known Peers
+                envelope.mark(PeerExchange.MARKER_RESPONSE);
+                envelope.addContent(service.peersOfPeers.values());
+                envelope.addExternalRoute(BluetoothService.class.getName(), BluetoothService.OPERATION_PEER_STATUS_REPLY, service.getNetworkState().localPeer, er.getOrigination());
+                envelope.ratchet();
+                // Back with a PUT, as only the changes since our last reply to this peer
+                service.sendOutAsync(envelope);
+            }
+
+            op.close();
+            return ResponseCodes.OBEX_HTTP_OK;
+        } catch (BufferPool.TooLargeException e) {
+            LOG.warning("Refusing get from "+peerId+": "+e.getLocalizedMessage());
+            return ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+        } finally {
+            service.metrics.record(MetricsRegistry.GET_HANDLE_TIME, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Replace a peer list the remote sent as changes with its whole list.
+     */
+    @SuppressWarnings("unchecked")
+    private void expandPeerDelta(Envelope envelope) {
+        if(!PeerExchange.isDelta(envelope.getContent())) {
+            return;
+        }
+        String neighbor = peerId;
+        if(envelope.getRoute() instanceof ExternalRoute) {
+            NetworkPeer origination = ((ExternalRoute)envelope.getRoute()).getOrigination();
+            if(origination != null && origination.getId() != null) {
+                neighbor = origination.getId();
+            }
+        }
+        List<Map<String, Object>> maps = service.peerExchange.incoming(String.valueOf(neighbor), (Map<String, Object>)envelope.getContent());
+        List<NetworkPeer> peers = new ArrayList<>(maps.size());
+        for(Map<String, Object> map : maps) {
+            peers.add(PeerExchange.toPeer(map));
+        }
+        envelope.addContent(peers);
+    }
+
+    /**
+     * Hand the peers listed in a peer exchange on to the peers of peers.
+     */
+    private void peersReceived(Envelope envelope) {
+        if((envelope.markerPresent(PeerExchange.MARKER_REQUEST) || envelope.markerPresent(PeerExchange.MARKER_RESPONSE))
+                && envelope.getContent() instanceof List) {
+            service.peersOfPeersReceived((List<?>)envelope.getContent());
+        }
+    }
+
+//    @Override
+//    public int onDelete(HeaderSet request, HeaderSet reply) {
+//
+//    }
+
+    @Override
+    public void onDisconnect(HeaderSet request, HeaderSet reply) {
+        LOG.info("Disconnect request received from: "+peerId);
+        disconnected.countDown();
+    }
+}
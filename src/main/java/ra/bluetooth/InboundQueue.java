@@ -0,0 +1,115 @@
+package ra.bluetooth;
+
+import ra.common.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue between inbound PUTs and the service bus.
+ *
+ * Request handlers enqueue received envelopes and answer the remote right away; a dispatcher thread drains up to
+ * maxDrain of whatever has queued up at a time and sends them to the bus one by one, as the MessageProducer takes
+ * no more. Envelopes that find the queue full, or that are still queued when it shuts down, are dead lettered
+ * rather than lost.
+ *
+ * The queue is held in memory only, so envelopes acknowledged but still queued are lost if the process dies.
+ * That is on purpose: the bus they are handed to is in memory too, so a journal here would only cover the
+ * moments an envelope waits in this queue, at the cost of a synced write before every acknowledgement.
+ */
+final class InboundQueue {
+
+    private static final Logger LOG = Logger.getLogger(InboundQueue.class.getName());
+
+    private final BluetoothService service;
+    private final BlockingQueue<Envelope> queue;
+    private final int maxDrain;
+    private final Thread dispatcher;
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    InboundQueue(BluetoothService service, int capacity, int maxDrain) {
+        this.service = service;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxDrain = Math.max(1, maxDrain);
+        dispatcher = new Thread(this::dispatch, "BluetoothSensor-InboundDispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue the envelope for the bus, dead lettering it if the queue is full or shut down.
+     * @return true if queued
+     */
+    boolean offer(Envelope envelope) {
+        if(accepting && queue.offer(envelope)) {
+            return true;
+        }
+        LOG.warning("Inbound queue full; dead lettering envelope.");
+        service.metrics.count(MetricsRegistry.INBOUND_DEAD_LETTERED, 1);
+        service.deadLetter(envelope);
+        return false;
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting envelopes and give the dispatcher up to the timeout to hand over what is queued;
+     * anything left is dead lettered.
+     */
+    void shutdown(long timeoutMs) {
+        accepting = false;
+        running = false;
+        try {
+            if(timeoutMs > 0) {
+                dispatcher.join(timeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dispatcher.interrupt();
+        List<Envelope> left = new ArrayList<>();
+        queue.drainTo(left);
+        if(!left.isEmpty()) {
+            LOG.warning("Dead lettering "+left.size()+" inbound envelopes not handed over before shutdown.");
+            for(Envelope envelope : left) {
+                service.deadLetter(envelope);
+            }
+        }
+    }
+
+    private void dispatch() {
+        List<Envelope> drained = new ArrayList<>(maxDrain);
+        // Once shut down, keep going until the queue is empty or the dispatcher is interrupted
+        while(running || !queue.isEmpty()) {
+            try {
+                Envelope first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                drained.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(drained, maxDrain - 1);
+            service.metrics.record(MetricsRegistry.INBOUND_DRAINED, drained.size());
+            for(Envelope envelope : drained) {
+                try {
+                    if(!service.send(envelope)) {
+                        service.deadLetter(envelope);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                    service.deadLetter(envelope);
+                }
+            }
+            drained.clear();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ra.bluetooth;
+
+import javax.microedition.io.Connection;
+import javax.obex.SessionNotifier;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The service's one OBEX server: accepts inbound connections and serves each on a worker of its own,
+ * with a {@link InboundConnection} holding that connection's state.
+ *
+ * At most maxConnections are served at once; further peers wait to be accepted until one ends. A connection
+ * ends when the remote disconnects, its transport closes or it has been idle for the idle timeout. Workers are virtual threads on JDKs
+ * that have them as they spend their time waiting on the remote, platform threads otherwise.
+ */
+final class InboundServer {
+
+    private static final Logger LOG = Logger.getLogger(InboundServer.class.getName());
+
+    // How often a served connection is checked for a transport the remote closed without disconnecting
+    static final long CLOSED_CHECK_MS = 1000;
+
+    private final BluetoothService service;
+    private final String url;
+    private final long idleTimeoutMs;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ExecutorService workers;
+    private SessionNotifier notifier;
+    private Thread acceptor;
+    private volatile boolean running = false;
+
+    /**
+     * @param url server url, e.g. btgoep://localhost:UUID;name=1M5
+     * @param virtualThreads use virtual threads for workers when the JDK supports them
+     */
+    InboundServer(BluetoothService service, String url, int maxConnections, long idleTimeoutMs, boolean virtualThreads) {
+        this.service = service;
+        this.url = url;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxConnections = Math.max(1, maxConnections);
+        permits = new Semaphore(this.maxConnections);
+        ExecutorService virtual = virtualThreads ? virtualThreadExecutor() : null;
+        workers = virtual != null ? virtual : new ThreadPoolExecutor(0, this.maxConnections,
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "BluetoothSensor-InboundConnection");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null before Java 21
+     */
+    static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Open the server and make the device discoverable. A server that has been shut down cannot be started again.
+     */
+    synchronized boolean start() {
+        if(running) {
+            return true;
+        }
+        if(workers.isShutdown()) {
+            return false;
+        }
+        try {
+            LOG.info("Setting up listener on: "+url);
+            notifier = service.stack.openServer(url);
+            service.stack.setDiscoverable(true);
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+            closeNotifier();
+            return false;
+        }
+        running = true;
+        SessionNotifier accepting = notifier;
+        acceptor = new Thread(() -> accept(accepting), "BluetoothSensor-InboundServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return true;
+    }
+
+    /**
+     * Close the server, ending open connections and taking the device out of discovery mode.
+     */
+    synchronized void shutdown() {
+        if(!running) {
+            return;
+        }
+        running = false;
+        closeNotifier();
+        acceptor.interrupt();
+        workers.shutdownNow();
+        try {
+            service.stack.setDiscoverable(false);
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return connections being served
+     */
+    int connections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    private void accept(SessionNotifier notifier) {
+        while (running) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            InboundConnection handler = new InboundConnection(service);
+            Connection connection;
+            try {
+                connection = notifier.acceptAndOpen(handler);
+            } catch (IOException e) {
+                permits.release();
+                if(running) {
+                    LOG.warning(e.getLocalizedMessage());
+                }
+                continue;
+            }
+            handler.setRemoteAddress(service.stack.remoteAddress(connection));
+            try {
+                workers.execute(() -> serve(handler, connection));
+            } catch (RejectedExecutionException e) {
+                close(connection);
+                permits.release();
+            }
+        }
+    }
+
+    private void serve(InboundConnection handler, Connection connection) {
+        try {
+            if(!handler.awaitEnd(idleTimeoutMs, CLOSED_CHECK_MS, () -> service.stack.isOpen(connection))) {
+                LOG.info("Closing inbound connection from "+handler.peerId()+" idle for "+idleTimeoutMs+"ms.");
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            close(connection);
+            permits.release();
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+    }
+
+    private void closeNotifier() {
+        if(notifier != null) {
+            try {
+                notifier.close();
+            } catch (IOException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+            notifier = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ra.bluetooth;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the inquiry interval to how much the neighborhood changes between inquiries.
+ *
+ * Churn is the number of devices that appeared or vanished since the previous inquiry relative to
+ * all devices seen in either. At or above the churn ratio the interval is halved, below it doubled,
+ * always within the min and max bounds. Each inquiry costs around ten seconds of radio time taken
+ * from active links, so a quiet neighborhood is inquired rarely.
+ */
+class InquiryBackoff {
+
+    private static final Logger LOG = Logger.getLogger(InquiryBackoff.class.getName());
+
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final double churnRatio;
+
+    private Set<String> previous;
+    private long intervalMs;
+
+    InquiryBackoff(long minIntervalMs, long maxIntervalMs, double churnRatio) {
+        this.minIntervalMs = Math.max(1, minIntervalMs);
+        this.maxIntervalMs = Math.max(this.minIntervalMs, maxIntervalMs);
+        this.churnRatio = churnRatio;
+        // Start fast - nothing is known about the neighborhood yet
+        this.intervalMs = this.minIntervalMs;
+    }
+
+    /**
+     * Record the devices found by a completed inquiry.
+     * @return interval until the next inquiry
+     */
+    synchronized long inquiryCompleted(Set<String> found) {
+        int total = found.size();
+        int churn = 0;
+        if(previous == null) {
+            churn = total;
+        } else {
+            for(String address : found) {
+                if(!previous.contains(address)) {
+                    churn++;
+                }
+            }
+            for(String address : previous) {
+                if(!found.contains(address)) {
+                    churn++;
+                    total++;
+                }
+            }
+        }
+        previous = new HashSet<>(found);
+        if(total > 0 && churn >= churnRatio * total) {
+            intervalMs = Math.max(minIntervalMs, intervalMs / 2);
+        } else {
+            intervalMs = Math.min(maxIntervalMs, intervalMs * 2);
+        }
+        LOG.info("Inquiry churn "+churn+" of "+total+" devices; next inquiry in "+intervalMs+"ms.");
+        return intervalMs;
+    }
+
+    synchronized long intervalMs() {
+        return intervalMs;
+    }
+}
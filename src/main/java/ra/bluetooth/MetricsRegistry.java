@@ -0,0 +1,68 @@
+package ra.bluetooth;
+
+/**
+ * Where the service reports its metrics. The default registry backs the service's MBean; another registry,
+ * e.g. an adapter to the host's metrics library, can be named with bluetooth.metrics.registry and is fed as well.
+ *
+ * Counters may be tagged, e.g. with the peer they concern. Histograms record durations in milliseconds
+ * unless their name says otherwise.
+ */
+public interface MetricsRegistry {
+
+    String BYTES_IN = "bytes.in";
+    String BYTES_OUT = "bytes.out";
+    String PUT = "obex.put";
+    String PUT_FAILED = "obex.put.failed";
+    String PUT_TIME = "obex.put.timeMs";
+    String PUT_RESUMED = "obex.put.resumed";
+    String PUT_RECEIVED = "obex.put.received";
+    String PUT_HANDLE_TIME = "obex.put.handleTimeMs";
+    String GET_RECEIVED = "obex.get.received";
+    String GET_HANDLE_TIME = "obex.get.handleTimeMs";
+    String CONNECT = "connect.success";
+    String CONNECT_FAILED = "connect.failure";
+    String CONNECT_TIME = "connect.timeMs";
+    String SESSION_PREWARMED = "session.prewarmed";
+    String SESSION_PREWARM_USED = "session.prewarmUsed";
+    String CIRCUIT_OPENED = "circuit.opened";
+    String CIRCUIT_REJECTED = "circuit.rejected";
+    String INQUIRY_TIME = "inquiry.timeMs";
+    String INQUIRY_DEVICES = "inquiry.devices";
+    String SDP_SEARCH = "sdp.search";
+    String INBOUND_DRAINED = "inbound.drained";
+    String INBOUND_DEAD_LETTERED = "inbound.deadLettered";
+    String INBOUND_DUPLICATES = "inbound.duplicates";
+    String DISCOVERY_EVENTS = "discovery.events";
+    String DISCOVERY_EVENTS_DROPPED = "discovery.events.dropped";
+
+    void count(String name, long delta);
+
+    void count(String name, String tag, long delta);
+
+    void record(String name, long value);
+
+    /**
+     * @return registry reporting to both
+     */
+    static MetricsRegistry both(MetricsRegistry first, MetricsRegistry second) {
+        return new MetricsRegistry() {
+            @Override
+            public void count(String name, long delta) {
+                first.count(name, delta);
+                second.count(name, delta);
+            }
+
+            @Override
+            public void count(String name, String tag, long delta) {
+                first.count(name, tag, delta);
+                second.count(name, tag, delta);
+            }
+
+            @Override
+            public void record(String name, long value) {
+                first.record(name, value);
+                second.record(name, value);
+            }
+        };
+    }
+}
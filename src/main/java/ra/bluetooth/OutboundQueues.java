@@ -0,0 +1,194 @@
+package ra.bluetooth;
+
+import ra.common.Envelope;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Bounded outbound queue per peer, each drained by its own {@link PeerWriter}.
+ *
+ * Callers are never held up by a slow or unreachable peer beyond the overflow policy: they get a future
+ * completed with the result of the PUT that carried their envelope. Writers batch whatever is queued
+ * within the linger time and exit once their peer has been quiet for the idle timeout.
+ */
+class OutboundQueues {
+
+    private static final Logger LOG = Logger.getLogger(OutboundQueues.class.getName());
+
+    final BluetoothService service;
+    final int capacity;
+    final long lingerMs;
+    final int maxBatchBytes;
+    final long idleTimeoutMs;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMs;
+    private final Map<String, PeerWriter> writers = new HashMap<>();
+    private boolean closed = false;
+
+    OutboundQueues(BluetoothService service, int capacity, OverflowPolicy overflowPolicy, long blockTimeoutMs,
+                   long lingerMs, int maxBatchBytes, long idleTimeoutMs) {
+        this.service = service;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.lingerMs = lingerMs;
+        this.maxBatchBytes = maxBatchBytes;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Queue the envelope for the peer.
+     * @return completed with the result of the PUT that carried the envelope, or false if it was
+     * dropped or could not be queued; completed exceptionally with {@link DeadLetteredException} if it was
+     * dead lettered instead, so it is not routed again
+     */
+    CompletableFuture<Boolean> add(String address, NetworkPeer peer, Envelope envelope) {
+        Pending pending = new Pending(envelope);
+        while (true) {
+            PeerWriter writer;
+            synchronized (writers) {
+                if(closed) {
+                    pending.result.complete(false);
+                    return pending.result;
+                }
+                writer = writers.get(address);
+                if(writer == null) {
+                    writer = new PeerWriter(this, address, peer);
+                    writers.put(address, writer);
+                    writer.start();
+                }
+            }
+            if(!enqueue(writer, pending)) {
+                return pending.result;
+            }
+            // The writer may have retired between lookup and enqueue; if it never saw the envelope, try again
+            if(!writer.isRetired() || !writer.queue.remove(pending)) {
+                return pending.result;
+            }
+        }
+    }
+
+    private boolean enqueue(PeerWriter writer, Pending pending) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST: {
+                while (!writer.queue.offer(pending)) {
+                    Pending oldest = writer.queue.poll();
+                    if(oldest != null) {
+                        LOG.warning("Outbound queue full for "+writer.address+" - dropping oldest envelope.");
+                        oldest.result.complete(false);
+                    }
+                }
+                return true;
+            }
+            case DEAD_LETTER: {
+                if(!writer.queue.offer(pending)) {
+                    LOG.warning("Outbound queue full for "+writer.address+" - dead lettering envelope.");
+                    service.deadLetter(pending.envelope);
+                    pending.result.completeExceptionally(new DeadLetteredException("Outbound queue full for "+writer.address));
+                    return false;
+                }
+                return true;
+            }
+            default: {
+                try {
+                    if(!writer.queue.offer(pending, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        LOG.warning("Outbound queue for "+writer.address+" still full after "+blockTimeoutMs+"ms.");
+                        pending.result.complete(false);
+                        return false;
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    pending.result.complete(false);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by an idle writer; it may only exit if nothing was queued in the meantime.
+     * @return true if the writer was removed and must exit
+     */
+    boolean retire(PeerWriter writer) {
+        synchronized (writers) {
+            if(!writer.queue.isEmpty()) {
+                return false;
+            }
+            writer.markRetired();
+            writers.remove(writer.address);
+            return true;
+        }
+    }
+
+    /**
+     * @return number of envelopes queued per peer address
+     */
+    Map<String, Integer> depths() {
+        Map<String, Integer> depths = new HashMap<>();
+        synchronized (writers) {
+            for(PeerWriter writer : writers.values()) {
+                depths.put(writer.address, writer.queue.size());
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Stop accepting envelopes. Writers finish what is queued, up to the timeout, and anything left is failed.
+     */
+    void shutdown(long timeoutMs) {
+        List<PeerWriter> all;
+        synchronized (writers) {
+            closed = true;
+            all = new ArrayList<>(writers.values());
+            writers.clear();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for(PeerWriter writer : all) {
+            writer.finish(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        LOG.info("Outbound queues shutdown.");
+    }
+
+    /**
+     * The envelope went to the dead letter queue rather than to the peer.
+     */
+    static final class DeadLetteredException extends Exception {
+
+        DeadLetteredException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Envelope waiting to be sent along with the caller's result.
+     */
+    static final class Pending {
+
+        final Envelope envelope;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // Binary frame, encoded by the writer once it is known the peer takes frames
+        private byte[] frame;
+
+        private Pending(Envelope envelope) {
+            this.envelope = envelope;
+        }
+
+        /**
+         * @return the envelope encoded with {@link EnvelopeCodec#encode(Envelope)}; only called from the writer
+         */
+        byte[] frame() {
+            if(frame == null) {
+                frame = EnvelopeCodec.encode(envelope);
+            }
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ra.bluetooth;
+
+/**
+ * What to do with an envelope when the bounded queue it is headed for is full.
+ */
+enum OverflowPolicy {
+    /** Wait for room on the caller's thread, up to a timeout, then fail the envelope. */
+    BLOCK,
+    /** Fail the oldest queued envelope to make room. */
+    DROP_OLDEST,
+    /** Hand the new envelope to the MessageProducer's dead letter queue. */
+    DEAD_LETTER;
+
+    static OverflowPolicy fromConfig(String value) {
+        if(value != null) {
+            for(OverflowPolicy policy : values()) {
+                if(policy.name().equalsIgnoreCase(value.trim())) {
+                    return policy;
+                }
+            }
+        }
+        return DEAD_LETTER;
+    }
+}
@@ -0,0 +1,297 @@
+package ra.bluetooth;
+
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Sends peer lists of NetOpReq and NetOpRes envelopes as the changes since the last exchange with each neighbor.
+ *
+ * Each peer is keyed by its id and summarized by a digest of its JSON. For every neighbor the sender remembers the
+ * digests the neighbor acknowledged, and sends only the peers whose digest is new or changed plus the keys of
+ * those it no longer lists. The receiver keeps what each neighbor sent so far, applies the changes and hands the
+ * whole list on, so nothing past the radio sees a difference.
+ *
+ * Every delta carries a digest of the list it applies to. A receiver whose copy does not match, e.g. after a
+ * restart, applies what it can and asks for the whole list with the resync flag of its next exchange to that
+ * neighbor. A receiver refuses the PUT of a delta it drops, as a copy already received or for want of room, and
+ * the sender sends its whole list next after any exchange that was not acknowledged.
+ *
+ * Only neighbors that accepted {@link AppParameters#SUPPORTED_PEER_DELTA} on CONNECT get deltas; older ones
+ * expect the peer list itself as content and get it whole.
+ */
+final class PeerExchange {
+
+    private static final Logger LOG = Logger.getLogger(PeerExchange.class.getName());
+
+    static final String MARKER_REQUEST = "NetOpReq";
+    static final String MARKER_RESPONSE = "NetOpRes";
+
+    // Content keys of a delta
+    static final String DELTA = "peerDelta";
+    static final String BASE = "base";
+    static final String FULL = "full";
+    static final String PEERS = "peers";
+    static final String REMOVED = "removed";
+    static final String RESYNC = "resync";
+    static final String DIGEST = "digest";
+    static final String PEER = "peer";
+
+    // Digests by peer key that each neighbor acknowledged
+    private final Map<String, Map<String, Long>> sent;
+    // Peers by key, with their digests, that each neighbor sent
+    private final Map<String, Map<String, Received>> received;
+    // Neighbors whose deltas did not apply; our next exchange with them asks for the whole list
+    private final Set<String> resync = new HashSet<>();
+    // Device addresses whose sessions agreed to deltas on CONNECT
+    private final Map<String, Boolean> supported;
+
+    private static final class Received {
+        private final long digest;
+        private final Map<String, Object> peer;
+
+        private Received(long digest, Map<String, Object> peer) {
+            this.digest = digest;
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Changes to send to a neighbor, to be committed once the neighbor acknowledged them.
+     */
+    final class Outgoing {
+        final Map<String, Object> content;
+        private final String neighbor;
+        private final long base;
+        private final Map<String, Long> digests;
+
+        private Outgoing(String neighbor, Map<String, Object> content, long base, Map<String, Long> digests) {
+            this.neighbor = neighbor;
+            this.content = content;
+            this.base = base;
+            this.digests = digests;
+        }
+
+        /**
+         * Remember the list as the neighbor's once acknowledged, unless another exchange changed it meanwhile.
+         * Otherwise the neighbor may have applied the changes, or refused them after applying others, so the next
+         * exchange sends the whole list.
+         */
+        void completed(boolean acknowledged) {
+            synchronized (PeerExchange.this) {
+                if(!acknowledged) {
+                    sent.remove(neighbor);
+                    if(Boolean.TRUE.equals(content.get(RESYNC))) {
+                        resync.add(neighbor);
+                    }
+                    return;
+                }
+                Map<String, Long> current = sent.get(neighbor);
+                if(digest(current) == base) {
+                    sent.put(neighbor, digests);
+                } else {
+                    // Crossed with another exchange; the neighbor's copy is unknown, so start over
+                    sent.remove(neighbor);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maxNeighbors neighbors whose exchanges are remembered, least recently exchanged with forgotten first
+     */
+    PeerExchange(int maxNeighbors) {
+        sent = lru(Math.max(1, maxNeighbors));
+        received = lru(Math.max(1, maxNeighbors));
+        supported = lru(Math.max(1, maxNeighbors));
+    }
+
+    /**
+     * Record whether the device's session agreed to deltas on CONNECT.
+     */
+    synchronized void supported(String address, boolean deltas) {
+        supported.put(address, deltas);
+    }
+
+    /**
+     * @return true if the device's last session agreed to deltas; false until one has connected
+     */
+    synchronized boolean isSupported(String address) {
+        return Boolean.TRUE.equals(supported.get(address));
+    }
+
+    private static <V> Map<String, V> lru(int max) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * @return key identifying the peer across exchanges: its id, else its address, else its JSON digest
+     */
+    static String key(NetworkPeer peer) {
+        if(peer.getId() != null) {
+            return peer.getId();
+        }
+        if(peer.getDid() != null && peer.getDid().getPublicKey() != null && peer.getDid().getPublicKey().getAddress() != null) {
+            return peer.getDid().getPublicKey().getAddress();
+        }
+        return Long.toHexString(digest(peer));
+    }
+
+    static long digest(NetworkPeer peer) {
+        String json = peer.toJSON();
+        return EnvelopeDeduplicator.hash(json == null ? "" : json);
+    }
+
+    /**
+     * Order independent digest of a peer list by key; 0 for none.
+     */
+    static long digest(Map<String, Long> digests) {
+        long digest = 0;
+        if(digests != null) {
+            for(Map.Entry<String, Long> e : digests.entrySet()) {
+                digest ^= mix(EnvelopeDeduplicator.hash(e.getKey()) * 31 + e.getValue());
+            }
+        }
+        return digest;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return true if the content is a delta from {@link #outgoing(String, List)}
+     */
+    static boolean isDelta(Object content) {
+        return content instanceof Map && Boolean.TRUE.equals(((Map<?, ?>)content).get(DELTA));
+    }
+
+    /**
+     * The changes in peers since the neighbor's last acknowledged exchange, or all of them when there was none.
+     */
+    synchronized Outgoing outgoing(String neighbor, List<NetworkPeer> peers) {
+        Map<String, Long> previous = sent.get(neighbor);
+        boolean full = previous == null;
+        if(full) {
+            previous = new HashMap<>();
+        }
+        Map<String, Long> digests = new HashMap<>();
+        Map<String, Object> changed = new HashMap<>();
+        for(NetworkPeer peer : peers) {
+            String key = key(peer);
+            long digest = digest(peer);
+            digests.put(key, digest);
+            Long before = previous.get(key);
+            if(before == null || before != digest) {
+                Map<String, Object> entry = new HashMap<>();
+                entry.put(DIGEST, Long.toHexString(digest));
+                entry.put(PEER, peer.toMap());
+                changed.put(key, entry);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for(String key : previous.keySet()) {
+            if(!digests.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        long base = digest(previous);
+        Map<String, Object> content = new HashMap<>();
+        content.put(DELTA, true);
+        // Hex as JSON numbers may not survive as longs
+        content.put(BASE, Long.toHexString(base));
+        content.put(FULL, full);
+        content.put(PEERS, changed);
+        content.put(REMOVED, removed);
+        if(resync.remove(neighbor)) {
+            content.put(RESYNC, true);
+        }
+        return new Outgoing(neighbor, content, base, digests);
+    }
+
+    /**
+     * Apply a delta from the neighbor.
+     * @return every peer the neighbor now lists, as maps for {@link NetworkPeer#fromMap(Map)}
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<Map<String, Object>> incoming(String neighbor, Map<String, Object> delta) {
+        if(Boolean.TRUE.equals(delta.get(RESYNC))) {
+            // The neighbor lost track of our list; send it whole next time
+            sent.remove(neighbor);
+        }
+        boolean full = Boolean.TRUE.equals(delta.get(FULL));
+        Map<String, Received> peers = received.get(neighbor);
+        if(full || peers == null) {
+            peers = new HashMap<>();
+            received.put(neighbor, peers);
+        }
+        if(!full && digest(digests(peers)) != parseHex(delta.get(BASE))) {
+            LOG.info("Peer list changes from "+neighbor+" do not apply to what it sent before; requesting its whole list.");
+            resync.add(neighbor);
+        }
+        Object removed = delta.get(REMOVED);
+        if(removed instanceof Collection) {
+            for(Object key : (Collection<Object>)removed) {
+                peers.remove(String.valueOf(key));
+            }
+        }
+        Object updates = delta.get(PEERS);
+        if(updates instanceof Map) {
+            for(Map.Entry<String, Object> e : ((Map<String, Object>)updates).entrySet()) {
+                if(!(e.getValue() instanceof Map)) {
+                    continue;
+                }
+                Map<String, Object> entry = (Map<String, Object>)e.getValue();
+                if(!(entry.get(PEER) instanceof Map)) {
+                    continue;
+                }
+                peers.put(e.getKey(), new Received(parseHex(entry.get(DIGEST)), (Map<String, Object>)entry.get(PEER)));
+            }
+        }
+        List<Map<String, Object>> all = new ArrayList<>(peers.size());
+        for(Received r : peers.values()) {
+            all.add(r.peer);
+        }
+        return all;
+    }
+
+    private static Map<String, Long> digests(Map<String, Received> peers) {
+        Map<String, Long> digests = new HashMap<>();
+        for(Map.Entry<String, Received> e : peers.entrySet()) {
+            digests.put(e.getKey(), e.getValue().digest);
+        }
+        return digests;
+    }
+
+    private static long parseHex(Object value) {
+        try {
+            return value == null ? 0 : Long.parseUnsignedLong(String.valueOf(value), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static NetworkPeer toPeer(Map<String, Object> map) {
+        NetworkPeer peer = new NetworkPeer();
+        peer.fromMap(map);
+        return peer;
+    }
+}
@@ -0,0 +1,291 @@
+package ra.bluetooth;
+
+import ra.common.network.NetworkPeer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of known devices, their resolved services and peers of peers, replayed on start
+ * so a restarted node can reach known peers without waiting on a full inquiry and SDP pass.
+ *
+ * Record: length (int) | crc32 (int) | {@link EnvelopeCodec} encoded map. Each record holds the full
+ * current state of one entry so the last record for an address wins. Once the log holds well more
+ * records than live entries it is compacted by rewriting the live entries and renaming over it.
+ * A torn record at the tail, e.g. from a crash mid-write, ends replay and is dropped.
+ */
+class PeerStore {
+
+    private static final Logger LOG = Logger.getLogger(PeerStore.class.getName());
+
+    private static final String KIND = "kind";
+    private static final String KIND_DEVICE = "device";
+    private static final String KIND_PEER = "peer";
+    private static final String ADDRESS = "address";
+    private static final String REMOVED = "removed";
+    private static final String PEER = "peer";
+
+    static final String NAME = "name";
+    static final String SERVICE_URL = "serviceURL";
+    static final String SERVICE_NAME = "serviceName";
+    static final String RA_ID = "raId";
+
+    private final File file;
+    private final int minCompactRecords;
+    private final Map<String, Map<String, Object>> devices = new HashMap<>();
+    private final Map<String, Map<String, Object>> peers = new HashMap<>();
+    private DataOutputStream out;
+    private int records = 0;
+
+    PeerStore(File file, int minCompactRecords) {
+        this.file = file;
+        this.minCompactRecords = minCompactRecords;
+    }
+
+    /**
+     * Replay the log and open it for appending.
+     * @return false if the log could not be opened; the store then only keeps state in memory
+     */
+    synchronized boolean load() {
+        long validLength = 0;
+        if(file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int checksum = in.readInt();
+                    if(length < 0 || length > file.length()) {
+                        throw new EOFException("Invalid record length: "+length);
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if((int)crc.getValue() != checksum) {
+                        throw new EOFException("Record checksum mismatch.");
+                    }
+                    apply(record);
+                    validLength += 8 + length;
+                    records++;
+                }
+            } catch (EOFException e) {
+                LOG.warning("Dropping torn tail of peer store after "+records+" records: "+e.getLocalizedMessage());
+            } catch (IOException e) {
+                LOG.warning("Unable to read peer store: "+e.getLocalizedMessage());
+                return false;
+            }
+        }
+        try {
+            if(file.exists() && file.length() > validLength) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            LOG.warning("Unable to open peer store for writing: "+e.getLocalizedMessage());
+            return false;
+        }
+        LOG.info("Peer store loaded "+devices.size()+" devices and "+peers.size()+" peers from "+records+" records.");
+        return true;
+    }
+
+    /**
+     * Merge the fields into the device's entry; null values leave existing fields unchanged.
+     */
+    synchronized void saveDevice(String address, Map<String, Object> fields) {
+        Map<String, Object> entry = devices.get(address);
+        if(entry == null) {
+            entry = new HashMap<>();
+            entry.put(KIND, KIND_DEVICE);
+            entry.put(ADDRESS, address);
+            devices.put(address, entry);
+        }
+        boolean changed = false;
+        for(Map.Entry<String, Object> field : fields.entrySet()) {
+            if(field.getValue() != null && !field.getValue().equals(entry.get(field.getKey()))) {
+                entry.put(field.getKey(), field.getValue());
+                changed = true;
+            }
+        }
+        if(changed) {
+            append(entry);
+        }
+    }
+
+    synchronized void saveService(String address, String serviceURL, String serviceName, String raId) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(SERVICE_URL, serviceURL);
+        fields.put(SERVICE_NAME, serviceName);
+        fields.put(RA_ID, raId);
+        saveDevice(address, fields);
+    }
+
+    /**
+     * Forget the device's resolved service, e.g. because connecting to it failed.
+     */
+    synchronized void removeService(String address) {
+        Map<String, Object> entry = devices.get(address);
+        if(entry != null && entry.remove(SERVICE_URL) != null) {
+            entry.remove(SERVICE_NAME);
+            append(entry);
+        }
+    }
+
+    /**
+     * Save the peer of peers unless it is unchanged.
+     */
+    synchronized void savePeer(String address, NetworkPeer peer) {
+        Map<String, Object> fields = peer.toMap();
+        Map<String, Object> previous = peers.get(address);
+        if(previous != null && Objects.equals(fields, previous.get(PEER))) {
+            return;
+        }
+        Map<String, Object> entry = new HashMap<>();
+        entry.put(KIND, KIND_PEER);
+        entry.put(ADDRESS, address);
+        entry.put(PEER, fields);
+        peers.put(address, entry);
+        append(entry);
+    }
+
+    synchronized void removePeer(String address) {
+        if(peers.remove(address) != null) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put(KIND, KIND_PEER);
+            entry.put(ADDRESS, address);
+            entry.put(REMOVED, true);
+            append(entry);
+        }
+    }
+
+    /**
+     * @return copy of the device entries by address
+     */
+    synchronized Map<String, Map<String, Object>> devices() {
+        Map<String, Map<String, Object>> copy = new HashMap<>();
+        for(Map.Entry<String, Map<String, Object>> e : devices.entrySet()) {
+            copy.put(e.getKey(), new HashMap<>(e.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * @return addresses of the peers of peers
+     */
+    synchronized Set<String> peerAddresses() {
+        return new HashSet<>(peers.keySet());
+    }
+
+    /**
+     * @return peers of peers by address
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Map<String, NetworkPeer> peers() {
+        Map<String, NetworkPeer> copy = new HashMap<>();
+        for(Map.Entry<String, Map<String, Object>> e : peers.entrySet()) {
+            NetworkPeer peer = new NetworkPeer();
+            peer.fromMap((Map<String, Object>)e.getValue().get(PEER));
+            copy.put(e.getKey(), peer);
+        }
+        return copy;
+    }
+
+    synchronized void close() {
+        if(out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+            out = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply(byte[] record) throws IOException {
+        Object value = EnvelopeCodec.decodeValue(record, 0, record.length);
+        if(!(value instanceof Map)) {
+            return;
+        }
+        Map<String, Object> entry = (Map<String, Object>)value;
+        String address = (String)entry.get(ADDRESS);
+        if(address == null) {
+            return;
+        }
+        Map<String, Map<String, Object>> target = KIND_PEER.equals(entry.get(KIND)) ? peers : devices;
+        if(Boolean.TRUE.equals(entry.get(REMOVED))) {
+            target.remove(address);
+        } else {
+            target.put(address, entry);
+        }
+    }
+
+    private void append(Map<String, Object> entry) {
+        if(out == null) {
+            return;
+        }
+        try {
+            writeRecord(out, entry);
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            LOG.warning("Unable to append to peer store: "+e.getLocalizedMessage());
+            return;
+        }
+        if(records > minCompactRecords && records > 2 * (devices.size() + peers.size())) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        File tmp = new File(file.getParentFile(), file.getName() + ".compact");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(fos))) {
+                for(Map<String, Object> entry : devices.values()) {
+                    writeRecord(compacted, entry);
+                }
+                for(Map<String, Object> entry : peers.values()) {
+                    writeRecord(compacted, entry);
+                }
+                compacted.flush();
+                fos.getFD().sync();
+            }
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Compacted peer store from "+records+" to "+(devices.size() + peers.size())+" records.");
+            records = devices.size() + peers.size();
+        } catch (IOException e) {
+            LOG.warning("Unable to compact peer store: "+e.getLocalizedMessage());
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            LOG.warning("Unable to reopen peer store: "+e.getLocalizedMessage());
+            out = null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream stream, Map<String, Object> entry) throws IOException {
+        byte[] record = EnvelopeCodec.encodeValue(entry);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        stream.writeInt(record.length);
+        stream.writeInt((int)crc.getValue());
+        stream.write(record);
+    }
+}
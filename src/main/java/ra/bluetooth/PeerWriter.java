@@ -0,0 +1,148 @@
+package ra.bluetooth;
+
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Drains one peer's outbound queue on its own thread, batching envelopes queued within the linger time.
+ */
+class PeerWriter implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(PeerWriter.class.getName());
+
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final OutboundQueues queues;
+    final String address;
+    private final NetworkPeer peer;
+    final BlockingQueue<OutboundQueues.Pending> queue;
+    private final Thread thread;
+    private volatile boolean retired = false;
+    private volatile boolean finishing = false;
+    // Taken from the queue but too large for the batch it was polled for
+    private OutboundQueues.Pending carry;
+    // Whether the peer took binary frames when last sent to; envelopes to peers that only take JSON are not encoded
+    private boolean framed = true;
+
+    PeerWriter(OutboundQueues queues, String address, NetworkPeer peer) {
+        this.queues = queues;
+        this.address = address;
+        this.peer = peer;
+        queue = new ArrayBlockingQueue<>(queues.capacity);
+        thread = new Thread(this, "BluetoothSensor-PeerWriter-"+address);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    void markRetired() {
+        retired = true;
+    }
+
+    @Override
+    public void run() {
+        long idleSince = System.currentTimeMillis();
+        try {
+            while (true) {
+                OutboundQueues.Pending first = carry;
+                carry = null;
+                if(first == null) {
+                    // Wake up regularly so a shutdown is noticed without waiting out the idle timeout
+                    first = queue.poll(finishing ? 0 : Math.min(queues.idleTimeoutMs, POLL_INTERVAL_MS), TimeUnit.MILLISECONDS);
+                }
+                if(first == null) {
+                    if(finishing || (System.currentTimeMillis() - idleSince >= queues.idleTimeoutMs && queues.retire(this))) {
+                        return;
+                    }
+                    continue;
+                }
+                List<OutboundQueues.Pending> batch = nextBatch(first);
+                try {
+                    WireFormat format = queues.service.sendBatch(address, peer, batch);
+                    if(format != null) {
+                        framed = format.supportsBatching();
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warning("Failed sending batch to "+address+": "+e.getLocalizedMessage());
+                    for(OutboundQueues.Pending pending : batch) {
+                        pending.result.complete(false);
+                    }
+                }
+                idleSince = System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Writer for "+address+" interrupted.");
+        } finally {
+            failRemaining();
+        }
+    }
+
+    private List<OutboundQueues.Pending> nextBatch(OutboundQueues.Pending first) throws InterruptedException {
+        List<OutboundQueues.Pending> batch = new ArrayList<>();
+        batch.add(first);
+        int bytes = size(first);
+        long deadline = System.currentTimeMillis() + queues.lingerMs;
+        while (bytes < queues.maxBatchBytes) {
+            long remaining = deadline - System.currentTimeMillis();
+            OutboundQueues.Pending next = remaining > 0 && !finishing
+                    ? queue.poll(remaining, TimeUnit.MILLISECONDS)
+                    : queue.poll();
+            if(next == null) {
+                break;
+            }
+            int size = size(next);
+            if(bytes + size > queues.maxBatchBytes) {
+                carry = next;
+                break;
+            }
+            batch.add(next);
+            bytes += size;
+        }
+        return batch;
+    }
+
+    /**
+     * @return bytes the envelope adds to a batch frame; nothing for peers sent one JSON envelope per PUT
+     */
+    private int size(OutboundQueues.Pending pending) {
+        return framed ? pending.frame().length : 0;
+    }
+
+    /**
+     * Send what is queued without lingering, waiting up to the timeout before giving up on the rest.
+     */
+    void finish(long timeoutMs) {
+        finishing = true;
+        try {
+            thread.join(Math.max(1, timeoutMs));
+        } catch (InterruptedException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+        if(thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    private void failRemaining() {
+        if(carry != null) {
+            carry.result.complete(false);
+            carry = null;
+        }
+        OutboundQueues.Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.complete(false);
+        }
+    }
+}
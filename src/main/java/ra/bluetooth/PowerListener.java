@@ -0,0 +1,9 @@
+package ra.bluetooth;
+
+interface PowerListener {
+
+    /**
+     * Called once a change of the radio's power state has held through the debounce period.
+     */
+    void powerChanged(boolean powerOn);
+}
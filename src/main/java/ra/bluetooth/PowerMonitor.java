@@ -0,0 +1,109 @@
+package ra.bluetooth;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the radio's power state and tells listeners about changes that last.
+ *
+ * An observed change is only reported once it has held for the debounce period, so a flapping radio
+ * does not set off a pause and a full rediscovery on every flap. Polling is slow while the state is
+ * stable and fast while a change is pending or has just been reported.
+ */
+class PowerMonitor {
+
+    private static final Logger LOG = Logger.getLogger(PowerMonitor.class.getName());
+
+    private final PowerStateSource source;
+    private final long debounceMs;
+    private final long fastPollMs;
+    private final long slowPollMs;
+    private final List<PowerListener> listeners = new CopyOnWriteArrayList<>();
+
+    private boolean initialized = false;
+    private boolean powerOn = false;
+    private Boolean pending;
+    private long pendingSince;
+    private long changedAt;
+
+    PowerMonitor(PowerStateSource source, long debounceMs, long fastPollMs, long slowPollMs) {
+        this.source = source;
+        this.debounceMs = debounceMs;
+        this.fastPollMs = fastPollMs;
+        this.slowPollMs = Math.max(fastPollMs, slowPollMs);
+        if(source.subscribe(this::check)) {
+            LOG.info("Power state source sends notifications; polling as a fallback only.");
+        }
+    }
+
+    void addListener(PowerListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(PowerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Read the power state once, reporting a change to listeners if it has held through the debounce period.
+     */
+    void check() {
+        boolean observed = source.isPowerOn();
+        long now = System.currentTimeMillis();
+        boolean report;
+        synchronized (this) {
+            if(!initialized) {
+                // Nothing to debounce against; an off radio at start is not a change
+                initialized = true;
+                powerOn = observed;
+                changedAt = now;
+                report = observed;
+            } else if(observed == powerOn) {
+                if(pending != null) {
+                    LOG.info("Bluetooth radio power flapped back within "+(now - pendingSince)+"ms - ignoring.");
+                }
+                pending = null;
+                report = false;
+            } else if(pending == null) {
+                pending = observed;
+                pendingSince = now;
+                report = debounceMs <= 0 && commit(now);
+            } else {
+                report = now - pendingSince >= debounceMs && commit(now);
+            }
+        }
+        if(report) {
+            for(PowerListener listener : listeners) {
+                try {
+                    listener.powerChanged(observed);
+                } catch (RuntimeException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private boolean commit(long now) {
+        powerOn = pending;
+        pending = null;
+        changedAt = now;
+        return true;
+    }
+
+    synchronized boolean isPowerOn() {
+        return powerOn;
+    }
+
+    /**
+     * @return how long to wait before the next check
+     */
+    synchronized long nextPollMs() {
+        if(pending != null) {
+            // Confirm the change as soon as the debounce period is over
+            return Math.max(fastPollMs, Math.min(debounceMs, slowPollMs));
+        }
+        // Radios often flap right after a change, so keep watching closely for a while
+        return System.currentTimeMillis() - changedAt < slowPollMs ? fastPollMs : slowPollMs;
+    }
+}
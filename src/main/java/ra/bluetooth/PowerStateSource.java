@@ -0,0 +1,20 @@
+package ra.bluetooth;
+
+/**
+ * Where the radio's power state is read from.
+ *
+ * Sources backed by OS notifications (e.g. BlueZ adapter property changes over D-Bus) should call the
+ * subscribed callback on every change so the monitor need not wait for its next poll.
+ */
+interface PowerStateSource {
+
+    boolean isPowerOn();
+
+    /**
+     * @param onChange run whenever the source learns the power state may have changed
+     * @return false if the source cannot notify and must be polled
+     */
+    default boolean subscribe(Runnable onChange) {
+        return false;
+    }
+}
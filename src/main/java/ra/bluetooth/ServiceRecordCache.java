@@ -0,0 +1,128 @@
+package ra.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-address cache of resolved SDP results so repeat inquiries can skip the service search.
+ *
+ * Devices found to have no matching service are cached too, with their own TTL, as they make up
+ * most of what an inquiry turns up in public spaces. Entries are invalidated when connecting to
+ * the cached service fails. Resolved services are written through to the PeerStore, if any, so they
+ * survive a restart; negative results are not worth persisting.
+ */
+class ServiceRecordCache {
+
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final PeerStore store;
+
+    ServiceRecordCache(long ttlMs, long negativeTtlMs, PeerStore store) {
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        this.store = store;
+    }
+
+    /**
+     * Load the services resolved before the last restart as freshly resolved; a stale one is
+     * invalidated by the first failed connect like any other entry.
+     * @return number of services restored
+     */
+    int restore() {
+        if(store == null) {
+            return 0;
+        }
+        int restored = 0;
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, Map<String, Object>> device : store.devices().entrySet()) {
+            Map<String, Object> fields = device.getValue();
+            String serviceURL = (String)fields.get(PeerStore.SERVICE_URL);
+            if(serviceURL != null) {
+                entries.put(device.getKey(), new Entry(serviceURL, (String)fields.get(PeerStore.SERVICE_NAME), (String)fields.get(PeerStore.RA_ID), now));
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * @return the cached result if still fresh, otherwise null
+     */
+    Entry get(String address) {
+        Entry entry = entries.get(address);
+        if(entry == null) {
+            return null;
+        }
+        if(System.currentTimeMillis() - entry.resolvedAt > (entry.hasService() ? ttlMs : negativeTtlMs)) {
+            entries.remove(address, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    void put(String address, String serviceURL, String serviceName, String raId) {
+        entries.put(address, new Entry(serviceURL, serviceName, raId, System.currentTimeMillis()));
+        if(store != null) {
+            store.saveService(address, serviceURL, serviceName, raId);
+        }
+    }
+
+    /**
+     * Remember that the device offers no service we can use.
+     */
+    void putNoService(String address) {
+        entries.put(address, new Entry(null, null, null, System.currentTimeMillis()));
+    }
+
+    void invalidate(String address) {
+        entries.remove(address);
+        if(store != null) {
+            store.removeService(address);
+        }
+    }
+
+    void purgeExpired() {
+        for(String address : entries.keySet()) {
+            get(address);
+        }
+    }
+
+    /**
+     * @return addresses of the cached services with an RA id
+     */
+    List<String> raPeers() {
+        List<String> addresses = new ArrayList<>();
+        for(Map.Entry<String, Entry> e : entries.entrySet()) {
+            if(e.getValue().raId != null) {
+                addresses.add(e.getKey());
+            }
+        }
+        return addresses;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    static final class Entry {
+
+        final String serviceURL;
+        final String serviceName;
+        final String raId;
+        final long resolvedAt;
+
+        private Entry(String serviceURL, String serviceName, String raId, long resolvedAt) {
+            this.serviceURL = serviceURL;
+            this.serviceName = serviceName;
+            this.raId = raId;
+            this.resolvedAt = resolvedAt;
+        }
+
+        boolean hasService() {
+            return serviceURL != null;
+        }
+    }
+}
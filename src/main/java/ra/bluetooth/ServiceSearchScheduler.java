@@ -0,0 +1,184 @@
+package ra.bluetooth;
+
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Queues SDP service searches so no more are in flight than the stack allows (bluetooth.sd.trans.max).
+ *
+ * Devices already known to be RA peers are searched before unknown devices. Searches that fail with
+ * SERVICE_SEARCH_ERROR, or that the stack refuses to start, are retried with exponential backoff.
+ */
+class ServiceSearchScheduler {
+
+    private static final Logger LOG = Logger.getLogger(ServiceSearchScheduler.class.getName());
+
+    private final BluetoothStack stack;
+    private final int maxInFlight;
+    private final int maxAttempts;
+    private final long backoffMs;
+    private final int[] attrIDs;
+    private final UUID[] uuids;
+
+    // Only used to delay retries
+    private final ScheduledExecutorService executor;
+    private final PriorityQueue<Search> ready = new PriorityQueue<>();
+    // Address of every device queued, waiting on a retry or in flight
+    private final Map<String, Search> pending = new HashMap<>();
+    private int inFlight = 0;
+    private long sequence = 0;
+    private final Set<String> raPeers = ConcurrentHashMap.newKeySet();
+
+    ServiceSearchScheduler(BluetoothStack stack, int maxInFlight, int maxAttempts, long backoffMs, int[] attrIDs, UUID[] uuids) {
+        this.stack = stack;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = backoffMs;
+        this.attrIDs = attrIDs;
+        this.uuids = uuids;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "BluetoothSensor-ServiceSearchScheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the stack's concurrent service search limit, or the fallback if it does not report one
+     */
+    static int stackLimit(BluetoothStack stack, int fallback) {
+        try {
+            String max = stack.getProperty("bluetooth.sd.trans.max");
+            return max == null ? fallback : Integer.parseInt(max.trim());
+        } catch (RuntimeException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Queue a service search of the device unless one is already queued or running.
+     * @param listener receives the search results and must report back through {@link #completed(String, int)}
+     */
+    synchronized void submit(BluetoothStack.Device device, BluetoothStack.Listener listener) {
+        String address = device.getBluetoothAddress();
+        if(pending.containsKey(address)) {
+            return;
+        }
+        Search search = new Search(device, listener, raPeers.contains(address), sequence++);
+        pending.put(address, search);
+        ready.add(search);
+        dispatch();
+    }
+
+    /**
+     * Release the device's search slot, scheduling a retry if the search errored and attempts remain.
+     * @return true if the search will be retried
+     */
+    synchronized boolean completed(String address, int respCode) {
+        Search search = pending.get(address);
+        if(search == null || !search.running) {
+            return false;
+        }
+        search.running = false;
+        inFlight--;
+        boolean retry = respCode == DiscoveryListener.SERVICE_SEARCH_ERROR && search.attempts < maxAttempts;
+        if(retry) {
+            retryLater(search);
+        } else {
+            pending.remove(address);
+        }
+        dispatch();
+        return retry;
+    }
+
+    /**
+     * Prioritize future searches of this device.
+     */
+    void markRaPeer(String address) {
+        raPeers.add(address);
+    }
+
+    /**
+     * Drop queued searches; those already running complete normally.
+     */
+    synchronized void clear() {
+        ready.clear();
+        pending.values().removeIf(search -> !search.running);
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void dispatch() {
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            Search search = ready.poll();
+            search.attempts++;
+            // Count it first in case the stack reports completion before searchServices returns
+            search.running = true;
+            inFlight++;
+            try {
+                stack.searchServices(attrIDs, uuids, search.device, search.listener);
+            } catch (IOException e) {
+                LOG.warning("Unable to start service search on "+search.device.getBluetoothAddress()+": "+e.getLocalizedMessage());
+                search.running = false;
+                inFlight--;
+                if(search.attempts < maxAttempts) {
+                    retryLater(search);
+                    // The stack is refusing searches - wait for a completion or the retry before trying more
+                    return;
+                }
+                pending.remove(search.device.getBluetoothAddress());
+            }
+        }
+    }
+
+    private void retryLater(Search search) {
+        long delay = backoffMs << Math.min(search.attempts - 1, 10);
+        LOG.info("Retrying service search on "+search.device.getBluetoothAddress()+" in "+delay+"ms.");
+        executor.schedule(() -> {
+            synchronized (this) {
+                if(pending.get(search.device.getBluetoothAddress()) == search) {
+                    ready.add(search);
+                    dispatch();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Search implements Comparable<Search> {
+
+        private final BluetoothStack.Device device;
+        private final BluetoothStack.Listener listener;
+        private final boolean raPeer;
+        private final long sequence;
+        private int attempts = 0;
+        private boolean running = false;
+
+        private Search(BluetoothStack.Device device, BluetoothStack.Listener listener, boolean raPeer, long sequence) {
+            this.device = device;
+            this.listener = listener;
+            this.raPeer = raPeer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Search o) {
+            if(raPeer != o.raPeer) {
+                return raPeer ? -1 : 1;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
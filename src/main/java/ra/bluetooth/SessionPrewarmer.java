@@ -0,0 +1,140 @@
+package ra.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Decides which RA peers get a session opened before the first envelope for them is sent, so that envelope does
+ * not wait on the connection and OBEX CONNECT.
+ *
+ * Peers are warmed when discovery resolves their service, and on each maintenance round when they have been leased
+ * at least minUses times since the rounds before; use counts halve every round so only recent use counts. Warming
+ * runs on a background thread and the pool keeps it within its warm budget.
+ */
+final class SessionPrewarmer {
+
+    private static final Logger LOG = Logger.getLogger(SessionPrewarmer.class.getName());
+
+    private final BluetoothSessionPool pool;
+    private final int budget;
+    private final int minUses;
+    // Leases and last known url by address, least recently used first
+    private final Map<String, Use> uses;
+    // Addresses waiting to be warmed, so each is queued once
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+
+    private static final class Use {
+        private final String address;
+        private String url;
+        private int count;
+
+        private Use(String address, String url, int count) {
+            this.address = address;
+            this.url = url;
+            this.count = count;
+        }
+    }
+
+    /**
+     * @param budget peers warmed per maintenance round; the pool bounds warm sessions overall
+     * @param minUses leases in recent rounds that make a peer worth keeping warm
+     * @param maxTracked addresses whose use is counted
+     */
+    SessionPrewarmer(BluetoothSessionPool pool, int budget, int minUses, int maxTracked) {
+        this.pool = pool;
+        this.budget = budget;
+        this.minUses = Math.max(1, minUses);
+        uses = new LinkedHashMap<String, Use>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Use> eldest) {
+                return size() > maxTracked;
+            }
+        };
+        // One connect at a time so warming never competes much with real sends for the radio
+        executor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, budget) * 4), r -> {
+                    Thread t = new Thread(r, "BluetoothSensor-SessionPrewarmer");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * An RA peer's service was resolved.
+     */
+    void discovered(String address, String url) {
+        warm(address, url);
+    }
+
+    /**
+     * A session to the address was leased.
+     */
+    synchronized void used(String address, String url) {
+        Use use = uses.get(address);
+        if(use == null) {
+            uses.put(address, new Use(address, url, 1));
+        } else {
+            use.url = url;
+            use.count++;
+        }
+    }
+
+    /**
+     * Warm the most used peers, up to the budget, and age the use counts.
+     */
+    void rewarm() {
+        List<Use> candidates = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Use> i = uses.values().iterator();
+            while(i.hasNext()) {
+                Use use = i.next();
+                if(use.count >= minUses) {
+                    candidates.add(new Use(use.address, use.url, use.count));
+                }
+                use.count /= 2;
+                if(use.count == 0) {
+                    i.remove();
+                }
+            }
+        }
+        candidates.sort((a, b) -> Integer.compare(b.count, a.count));
+        for(int i=0; i<candidates.size() && i<budget; i++) {
+            warm(candidates.get(i).address, candidates.get(i).url);
+        }
+    }
+
+    private void warm(String address, String url) {
+        if(budget <= 0 || url == null || !queued.add(address)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    pool.prewarm(address, url);
+                } catch (RuntimeException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                } finally {
+                    queued.remove(address);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.remove(address);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
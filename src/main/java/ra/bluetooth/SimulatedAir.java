@@ -0,0 +1,161 @@
+package ra.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The shared radio environment of {@link SimulatedBluetoothStack}s: which devices are in range and how links behave.
+ *
+ * Every transfer pays the link latency plus its size over the bandwidth. It is cut into MTU sized packets,
+ * each of which may be lost and retransmitted after a round trip; a packet lost too many times drops the link.
+ * Besides the attached stacks the air holds a population of passive devices that answer inquiries but offer
+ * no services, like the phones and headsets a real inquiry mostly turns up.
+ */
+class SimulatedAir {
+
+    private static SimulatedAir shared;
+
+    private final long latencyNanos;
+    private final long bytesPerSecond;
+    private final int mtu;
+    private final double lossRate;
+    private final int maxRetransmits;
+    final long inquiryMs;
+    private final Random random;
+
+    private final Map<String, SimulatedBluetoothStack> stacks = new ConcurrentHashMap<>();
+    private final Map<String, BluetoothStack.Device> population = new ConcurrentHashMap<>();
+    private final AtomicLong nextAddress = new AtomicLong(0x5A0000000001L);
+
+    /**
+     * @param latencyMs one way latency of each transfer
+     * @param bytesPerSecond link bandwidth, 0 for unlimited
+     * @param mtu bytes per packet
+     * @param lossRate probability of losing each packet
+     * @param inquiryMs duration of an inquiry
+     * @param population number of passive devices in range
+     * @param seed seed for losses, or 0 for a random seed
+     */
+    SimulatedAir(long latencyMs, long bytesPerSecond, int mtu, double lossRate, long inquiryMs, int population, long seed) {
+        this.latencyNanos = latencyMs * 1000000L;
+        this.bytesPerSecond = bytesPerSecond;
+        this.mtu = Math.max(1, mtu);
+        this.lossRate = Math.max(0, Math.min(lossRate, 0.99));
+        this.maxRetransmits = 8;
+        this.inquiryMs = inquiryMs;
+        this.random = seed == 0 ? new Random() : new Random(seed);
+        for(int i=0; i<population; i++) {
+            String address = nextAddress();
+            this.population.put(address, new SimulatedBluetoothStack.SimulatedDevice(address, "sim-device-"+i, 0x200));
+        }
+    }
+
+    /**
+     * @return the air shared by all simulated stacks created from config in this JVM, created from the first config
+     */
+    static synchronized SimulatedAir shared(Properties config) {
+        if(shared == null) {
+            shared = new SimulatedAir(
+                    longProperty(config, "bluetooth.sim.latencyMs", 20),
+                    longProperty(config, "bluetooth.sim.bytesPerSecond", 90 * 1024),
+                    (int)longProperty(config, "bluetooth.sim.mtu", 672),
+                    Double.parseDouble(config.getProperty("bluetooth.sim.lossRate", "0.0")),
+                    longProperty(config, "bluetooth.sim.inquiryMs", 10240),
+                    (int)longProperty(config, "bluetooth.sim.population", 0),
+                    longProperty(config, "bluetooth.sim.seed", 0));
+        }
+        return shared;
+    }
+
+    private static long longProperty(Properties config, String key, long defaultValue) {
+        String value = config.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    String nextAddress() {
+        return DeviceRegistry.unpack(nextAddress.getAndIncrement());
+    }
+
+    void attach(SimulatedBluetoothStack stack) {
+        stacks.put(stack.address, stack);
+    }
+
+    void detach(SimulatedBluetoothStack stack) {
+        stacks.remove(stack.address, stack);
+    }
+
+    SimulatedBluetoothStack stack(String address) {
+        return stacks.get(address);
+    }
+
+    BluetoothStack.Device device(String address) {
+        SimulatedBluetoothStack stack = stacks.get(address);
+        return stack != null ? stack.asDevice() : population.get(address);
+    }
+
+    boolean isPassive(String address) {
+        return population.containsKey(address);
+    }
+
+    /**
+     * @return devices an inquiry from the provided stack finds this time; each may be missed like a lost packet
+     */
+    List<BluetoothStack.Device> inquire(SimulatedBluetoothStack from) {
+        List<BluetoothStack.Device> found = new ArrayList<>();
+        for(SimulatedBluetoothStack stack : stacks.values()) {
+            if(stack != from && stack.isPowerOn() && stack.discoverable && !lost()) {
+                found.add(stack.asDevice());
+            }
+        }
+        for(BluetoothStack.Device device : population.values()) {
+            if(!lost()) {
+                found.add(device);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Block for as long as sending the bytes over a link takes.
+     * @throws IOException if a packet is lost more times than it is retransmitted
+     */
+    void transmit(int bytes) throws IOException {
+        long nanos = latencyNanos;
+        int packets = Math.max(1, (bytes + mtu - 1) / mtu);
+        for(int i=0; i<packets; i++) {
+            int attempts = 0;
+            while (lost()) {
+                if(++attempts > maxRetransmits) {
+                    sleep(nanos);
+                    throw new IOException("Simulated link lost after "+attempts+" retransmissions.");
+                }
+                // Retransmitted after the acknowledgement fails to come back
+                nanos += 2 * latencyNanos;
+            }
+        }
+        if(bytesPerSecond > 0) {
+            nanos += bytes * 1000000000L / bytesPerSecond;
+        }
+        sleep(nanos);
+    }
+
+    private boolean lost() {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    static void sleep(long nanos) throws IOException {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if(Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during simulated transfer.");
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package ra.bluetooth;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connection;
+import javax.obex.ClientSession;
+import javax.obex.SessionNotifier;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory Bluetooth stack for load testing discovery and send/receive without radios.
+ *
+ * Stacks sharing a {@link SimulatedAir} find each other by inquiry when powered on and discoverable, search each
+ * other's services and connect over simulated OBEX links. Callbacks arrive on stack threads, as with BlueCove.
+ */
+final class SimulatedBluetoothStack implements BluetoothStack {
+
+    private static final String SCHEME = "btgoep://";
+
+    final String address;
+    private final String name;
+    private final SimulatedAir air;
+    private final int maxSearches;
+    private final long acceptTimeoutMs;
+
+    private volatile boolean powerOn = true;
+    volatile boolean discoverable = false;
+    private volatile boolean inquiring = false;
+    private final AtomicInteger searches = new AtomicInteger();
+    private final AtomicInteger transactions = new AtomicInteger(1);
+    private final AtomicInteger channels = new AtomicInteger(1);
+    private final Map<Integer, SimulatedObex.Notifier> services = new ConcurrentHashMap<>();
+    private final Map<Integer, Object> serviceAttributes = new ConcurrentHashMap<>();
+    private final Set<String> cached = ConcurrentHashMap.newKeySet();
+    private final ExecutorService callbacks;
+
+    SimulatedBluetoothStack(SimulatedAir air, String address, String name, int maxSearches, long acceptTimeoutMs) {
+        this.air = air;
+        this.address = address;
+        this.name = name;
+        this.maxSearches = Math.max(1, maxSearches);
+        this.acceptTimeoutMs = acceptTimeoutMs;
+        callbacks = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "BluetoothSensor-SimulatedStack-"+address);
+            t.setDaemon(true);
+            return t;
+        });
+        air.attach(this);
+    }
+
+    static SimulatedBluetoothStack fromConfig(Properties config) {
+        SimulatedAir air = SimulatedAir.shared(config);
+        String address = config.getProperty("bluetooth.sim.address");
+        if(address == null) {
+            address = air.nextAddress();
+        }
+        return new SimulatedBluetoothStack(air, address, config.getProperty("bluetooth.sim.name", "sim-"+address),
+                Integer.parseInt(config.getProperty("bluetooth.sim.maxSearches", "1").trim()), 10 * 1000L);
+    }
+
+    void setPowerOn(boolean powerOn) {
+        this.powerOn = powerOn;
+    }
+
+    /**
+     * Add an attribute to the records of this stack's services, e.g. 0x5555 for the RA id.
+     */
+    void setServiceAttribute(int attrID, Object value) {
+        serviceAttributes.put(attrID, value);
+    }
+
+    /**
+     * Leave the air and stop delivering callbacks.
+     */
+    void shutdown() {
+        air.detach(this);
+        for(SimulatedObex.Notifier notifier : new ArrayList<>(services.values())) {
+            notifier.close();
+        }
+        callbacks.shutdownNow();
+    }
+
+    Device asDevice() {
+        return new SimulatedDevice(address, name, 0x100);
+    }
+
+    @Override
+    public boolean isPowerOn() {
+        return powerOn;
+    }
+
+    @Override
+    public String getLocalAddress() throws IOException {
+        checkPower();
+        return address;
+    }
+
+    @Override
+    public String getLocalName() throws IOException {
+        checkPower();
+        return name;
+    }
+
+    @Override
+    public boolean isDiscoverable() throws IOException {
+        checkPower();
+        return discoverable;
+    }
+
+    @Override
+    public void setDiscoverable(boolean discoverable) throws IOException {
+        checkPower();
+        this.discoverable = discoverable;
+    }
+
+    @Override
+    public String getProperty(String key) {
+        return "bluetooth.sd.trans.max".equals(key) ? String.valueOf(maxSearches) : null;
+    }
+
+    @Override
+    public List<Device> retrieveCachedDevices() throws IOException {
+        checkPower();
+        List<Device> devices = new ArrayList<>();
+        for(String cachedAddress : cached) {
+            Device device = air.device(cachedAddress);
+            if(device != null) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
+    @Override
+    public boolean startInquiry(Listener listener) throws IOException {
+        checkPower();
+        synchronized (this) {
+            if(inquiring) {
+                throw new BluetoothStateException("Inquiry already in progress.");
+            }
+            inquiring = true;
+        }
+        callbacks.execute(() -> {
+            int result = DiscoveryListener.INQUIRY_COMPLETED;
+            try {
+                List<Device> found = air.inquire(this);
+                // Responses trickle in over the inquiry
+                long spacing = air.inquiryMs * 1000000L / (found.size() + 1);
+                for(Device device : found) {
+                    SimulatedAir.sleep(spacing);
+                    cached.add(device.getBluetoothAddress());
+                    listener.deviceDiscovered(device);
+                }
+                SimulatedAir.sleep(spacing);
+            } catch (IOException e) {
+                result = DiscoveryListener.INQUIRY_TERMINATED;
+            } finally {
+                inquiring = false;
+            }
+            listener.inquiryCompleted(result);
+        });
+        return true;
+    }
+
+    @Override
+    public int searchServices(int[] attrIDs, UUID[] uuids, Device device, Listener listener) throws IOException {
+        checkPower();
+        if(searches.incrementAndGet() > maxSearches) {
+            searches.decrementAndGet();
+            throw new BluetoothStateException("Too many service searches in progress.");
+        }
+        int transID = transactions.getAndIncrement();
+        String remote = device.getBluetoothAddress();
+        callbacks.execute(() -> {
+            int result;
+            try {
+                SimulatedBluetoothStack target = air.stack(remote);
+                if(target == null) {
+                    air.transmit(16);
+                    result = air.isPassive(remote)
+                            ? DiscoveryListener.SERVICE_SEARCH_NO_RECORDS
+                            : DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE;
+                } else if(!target.isPowerOn()) {
+                    SimulatedAir.sleep(air.inquiryMs * 1000000L / 2);
+                    result = DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE;
+                } else {
+                    List<Service> records = target.serviceRecords(attrIDs);
+                    air.transmit(16 + records.size() * 128);
+                    if(records.isEmpty()) {
+                        result = DiscoveryListener.SERVICE_SEARCH_NO_RECORDS;
+                    } else {
+                        listener.servicesDiscovered(transID, records);
+                        result = DiscoveryListener.SERVICE_SEARCH_COMPLETED;
+                    }
+                }
+            } catch (IOException e) {
+                result = DiscoveryListener.SERVICE_SEARCH_ERROR;
+            }
+            // Free the slot first so the listener can start the next search
+            searches.decrementAndGet();
+            listener.serviceSearchCompleted(transID, result);
+        });
+        return transID;
+    }
+
+    @Override
+    public ClientSession openClient(String url) throws IOException {
+        checkPower();
+        if(!url.startsWith(SCHEME)) {
+            throw new IOException("Unsupported connection url: "+url);
+        }
+        int end = url.indexOf(';');
+        String[] hostAndChannel = url.substring(SCHEME.length(), end < 0 ? url.length() : end).split(":");
+        if(hostAndChannel.length != 2) {
+            throw new IOException("Connection url has no channel: "+url);
+        }
+        SimulatedBluetoothStack target = air.stack(hostAndChannel[0]);
+        if(target == null || !target.isPowerOn()) {
+            air.transmit(16);
+            throw new IOException("Failed to connect to "+hostAndChannel[0]);
+        }
+        SimulatedObex.Notifier notifier;
+        try {
+            notifier = target.services.get(Integer.parseInt(hostAndChannel[1]));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid channel in connection url: "+url);
+        }
+        air.transmit(16);
+        if(notifier == null) {
+            throw new IOException("No service on channel "+hostAndChannel[1]+" of "+hostAndChannel[0]);
+        }
+        return new SimulatedObex.Client(air, notifier, address, acceptTimeoutMs);
+    }
+
+    @Override
+    public SessionNotifier openServer(String url) throws IOException {
+        checkPower();
+        if(!url.startsWith(SCHEME + "localhost:")) {
+            throw new IOException("Unsupported server url: "+url);
+        }
+        String serviceName = null;
+        for(String param : url.split(";")) {
+            if(param.startsWith("name=")) {
+                serviceName = param.substring(5);
+            }
+        }
+        int channel = channels.getAndIncrement();
+        SimulatedObex.Notifier notifier = new SimulatedObex.Notifier(serviceName, () -> services.remove(channel));
+        services.put(channel, notifier);
+        return notifier;
+    }
+
+    @Override
+    public String remoteAddress(Connection connection) {
+        return connection instanceof SimulatedObex.Client ? ((SimulatedObex.Client)connection).address : null;
+    }
+
+    @Override
+    public boolean isOpen(Connection connection) {
+        return !(connection instanceof SimulatedObex.Client) || !((SimulatedObex.Client)connection).isClosed();
+    }
+
+    private List<Service> serviceRecords(int[] attrIDs) {
+        List<Service> records = new ArrayList<>();
+        for(Map.Entry<Integer, SimulatedObex.Notifier> service : services.entrySet()) {
+            Map<Integer, Object> attributes = new HashMap<>();
+            for(int attrID : attrIDs) {
+                Object value = attrID == 0x0100 ? service.getValue().serviceName : serviceAttributes.get(attrID);
+                if(value != null) {
+                    attributes.put(attrID, value);
+                }
+            }
+            String url = SCHEME + address + ":" + service.getKey() + ";authenticate=false;encrypt=false;master=false";
+            records.add(new SimulatedService(url, attributes));
+        }
+        return records;
+    }
+
+    private void checkPower() throws BluetoothStateException {
+        if(!powerOn) {
+            throw new BluetoothStateException("Bluetooth Device is not available");
+        }
+    }
+
+    static final class SimulatedDevice implements Device {
+
+        private final String address;
+        private final String name;
+        private final int majorDeviceClass;
+
+        SimulatedDevice(String address, String name, int majorDeviceClass) {
+            this.address = address;
+            this.name = name;
+            this.majorDeviceClass = majorDeviceClass;
+        }
+
+        @Override
+        public String getBluetoothAddress() {
+            return address;
+        }
+
+        @Override
+        public String getFriendlyName(boolean alwaysAsk) {
+            return name;
+        }
+
+        @Override
+        public boolean isAuthenticated() {
+            return false;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        @Override
+        public boolean isTrustedDevice() {
+            return false;
+        }
+
+        @Override
+        public int getMajorDeviceClass() {
+            return majorDeviceClass;
+        }
+
+        @Override
+        public int getMinorDeviceClass() {
+            return 0;
+        }
+
+        @Override
+        public int getServiceClasses() {
+            return 0;
+        }
+    }
+
+    private static final class SimulatedService implements Service {
+
+        private final String url;
+        private final Map<Integer, Object> attributes;
+
+        private SimulatedService(String url, Map<Integer, Object> attributes) {
+            this.url = url;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public String getConnectionURL() {
+            return url;
+        }
+
+        @Override
+        public Object getAttributeValue(int attrID) {
+            return attributes.get(attrID);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package ra.bluetooth;
+
+import javax.microedition.io.Connection;
+import javax.obex.*;
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * OBEX over a {@link SimulatedAir} link: the client session, server notifier, header sets and operations
+ * of {@link SimulatedBluetoothStack}.
+ *
+ * Requests are delivered to the server's request handler on the calling thread once the request has crossed
+ * the link, and the response pays the link again on its way back.
+ */
+final class SimulatedObex {
+
+    private static final Logger LOG = Logger.getLogger(SimulatedObex.class.getName());
+
+    private SimulatedObex() {}
+
+    static final class Headers implements HeaderSet {
+
+        private final Map<Integer, Object> headers = new LinkedHashMap<>();
+        private int responseCode = -1;
+
+        @Override
+        public void setHeader(int headerID, Object headerValue) {
+            if(headerValue == null) {
+                headers.remove(headerID);
+            } else {
+                headers.put(headerID, headerValue);
+            }
+        }
+
+        @Override
+        public Object getHeader(int headerID) {
+            return headers.get(headerID);
+        }
+
+        @Override
+        public int[] getHeaderList() {
+            int[] ids = new int[headers.size()];
+            int i = 0;
+            for(Integer id : headers.keySet()) {
+                ids[i++] = id;
+            }
+            return ids;
+        }
+
+        @Override
+        public void createAuthenticationChallenge(String realm, boolean userID, boolean access) {
+            // Simulated links are not authenticated
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if(responseCode < 0) {
+                throw new IOException("Not a response header set.");
+            }
+            return responseCode;
+        }
+
+        /**
+         * @return approximate size of the headers on the wire
+         */
+        int size() {
+            int size = 3;
+            for(Object value : headers.values()) {
+                if(value instanceof String) {
+                    size += 5 + 2 * ((String)value).length();
+                } else if(value instanceof byte[]) {
+                    size += 3 + ((byte[])value).length;
+                } else {
+                    size += 5;
+                }
+            }
+            return size;
+        }
+
+        private void putAll(HeaderSet other) throws IOException {
+            if(other != null) {
+                for(int id : other.getHeaderList()) {
+                    setHeader(id, other.getHeader(id));
+                }
+            }
+        }
+    }
+
+    static final class Notifier implements SessionNotifier {
+
+        final String serviceName;
+        private final Runnable onClose;
+        private final BlockingQueue<Client> incoming = new LinkedBlockingQueue<>();
+        private volatile boolean closed = false;
+
+        Notifier(String serviceName, Runnable onClose) {
+            this.serviceName = serviceName;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public Connection acceptAndOpen(ServerRequestHandler handler) throws IOException {
+            return acceptAndOpen(handler, null);
+        }
+
+        @Override
+        public Connection acceptAndOpen(ServerRequestHandler handler, Authenticator auth) throws IOException {
+            try {
+                while (!closed) {
+                    Client client = incoming.poll(200, TimeUnit.MILLISECONDS);
+                    if(client != null && client.accept(handler)) {
+                        return client;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection.");
+            }
+            throw new IOException("Notifier closed.");
+        }
+
+        private void offer(Client client) throws IOException {
+            if(closed) {
+                throw new IOException("Service is no longer offered.");
+            }
+            incoming.add(client);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            onClose.run();
+        }
+    }
+
+    static final class Client implements ClientSession {
+
+        private final SimulatedAir air;
+        // Of the device that opened the connection
+        final String address;
+        private final long acceptTimeoutMs;
+        private final CompletableFuture<ServerRequestHandler> handler = new CompletableFuture<>();
+        private volatile boolean closed = false;
+        private long connectionID = -1;
+
+        Client(SimulatedAir air, Notifier notifier, String address, long acceptTimeoutMs) throws IOException {
+            this.air = air;
+            this.address = address;
+            this.acceptTimeoutMs = acceptTimeoutMs;
+            notifier.offer(this);
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        private boolean accept(ServerRequestHandler serverHandler) {
+            return !closed && handler.complete(serverHandler);
+        }
+
+        private ServerRequestHandler handler() throws IOException {
+            if(closed) {
+                throw new IOException("Session closed.");
+            }
+            try {
+                return handler.get(acceptTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the server to accept.");
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IOException("Server did not accept the connection.");
+            }
+        }
+
+        /**
+         * Deliver a request across the link, returning the handler's response code, INTERNAL_ERROR if it throws.
+         */
+        private int exchange(int requestSize, Request request) throws IOException {
+            ServerRequestHandler server = handler();
+            air.transmit(requestSize);
+            int code;
+            try {
+                code = request.handle(server);
+            } catch (RuntimeException e) {
+                LOG.warning("Simulated request handler failed: "+e.getLocalizedMessage());
+                code = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            return code;
+        }
+
+        @Override
+        public HeaderSet createHeaderSet() {
+            return new Headers();
+        }
+
+        @Override
+        public void setConnectionID(long id) {
+            connectionID = id;
+        }
+
+        @Override
+        public long getConnectionID() {
+            return connectionID;
+        }
+
+        @Override
+        public HeaderSet connect(HeaderSet headers) throws IOException {
+            return simple(headers, (server, request, reply) -> server.onConnect(request, reply));
+        }
+
+        @Override
+        public HeaderSet disconnect(HeaderSet headers) throws IOException {
+            return simple(headers, (server, request, reply) -> {
+                server.onDisconnect(request, reply);
+                return ResponseCodes.OBEX_HTTP_OK;
+            });
+        }
+
+        @Override
+        public HeaderSet setPath(HeaderSet headers, boolean backup, boolean create) throws IOException {
+            return simple(headers, (server, request, reply) -> server.onSetPath(request, reply, backup, create));
+        }
+
+        @Override
+        public HeaderSet delete(HeaderSet headers) throws IOException {
+            return simple(headers, (server, request, reply) -> server.onDelete(request, reply));
+        }
+
+        @Override
+        public Operation get(HeaderSet headers) throws IOException {
+            return new ClientOperation(this, headers, false);
+        }
+
+        @Override
+        public Operation put(HeaderSet headers) throws IOException {
+            return new ClientOperation(this, headers, true);
+        }
+
+        @Override
+        public void setAuthenticator(Authenticator auth) {
+            // Simulated links are not authenticated
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            handler.cancel(false);
+        }
+
+        private HeaderSet simple(HeaderSet headers, SimpleRequest call) throws IOException {
+            Headers request = new Headers();
+            request.putAll(headers);
+            Headers reply = new Headers();
+            reply.responseCode = exchange(request.size(), server -> call.handle(server, request, reply));
+            air.transmit(reply.size());
+            return reply;
+        }
+    }
+
+    private interface Request {
+        int handle(ServerRequestHandler server);
+    }
+
+    private interface SimpleRequest {
+        int handle(ServerRequestHandler server, HeaderSet request, HeaderSet reply);
+    }
+
+    /**
+     * Client side of a PUT or GET; the request goes out when the response is first needed or the operation closes.
+     */
+    private static final class ClientOperation implements Operation {
+
+        private final Client client;
+        private final boolean put;
+        private final Headers request = new Headers();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private ServerOperation response;
+        private int responseCode = -1;
+        private boolean aborted = false;
+
+        private ClientOperation(Client client, HeaderSet headers, boolean put) throws IOException {
+            this.client = client;
+            this.put = put;
+            request.putAll(headers);
+        }
+
+        private void complete() throws IOException {
+            if(response != null || aborted) {
+                return;
+            }
+            byte[] sent = body.toByteArray();
+            ServerOperation op = new ServerOperation(request, sent);
+            int code = client.exchange(request.size() + sent.length, server -> put ? server.onPut(op) : server.onGet(op));
+            client.air.transmit(op.sentHeaders.size() + op.out.size());
+            response = op;
+            responseCode = code;
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if(response != null) {
+                throw new IOException("Operation already completed.");
+            }
+            aborted = true;
+        }
+
+        @Override
+        public HeaderSet getReceivedHeaders() throws IOException {
+            complete();
+            return response == null ? new Headers() : response.sentHeaders;
+        }
+
+        @Override
+        public void sendHeaders(HeaderSet headers) throws IOException {
+            if(response != null) {
+                throw new IOException("Operation already completed.");
+            }
+            request.putAll(headers);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            complete();
+            return responseCode;
+        }
+
+        @Override
+        public String getType() {
+            return (String)(response == null ? null : response.sentHeaders.getHeader(HeaderSet.TYPE));
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getLength() {
+            return response == null ? -1 : response.out.size();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            complete();
+            return new ByteArrayInputStream(response == null ? new byte[0] : response.out.toByteArray());
+        }
+
+        @Override
+        public DataInputStream openDataInputStream() throws IOException {
+            return new DataInputStream(openInputStream());
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            if(response != null) {
+                throw new IOException("Operation already completed.");
+            }
+            return body;
+        }
+
+        @Override
+        public DataOutputStream openDataOutputStream() throws IOException {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        @Override
+        public void close() throws IOException {
+            complete();
+        }
+    }
+
+    /**
+     * Server side of a PUT or GET as seen by the request handler.
+     */
+    private static final class ServerOperation implements Operation {
+
+        private final Headers received;
+        private final byte[] body;
+        private final Headers sentHeaders = new Headers();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private ServerOperation(Headers received, byte[] body) {
+            this.received = received;
+            this.body = body;
+        }
+
+        @Override
+        public void abort() throws IOException {
+            throw new IOException("Only the client can abort an operation.");
+        }
+
+        @Override
+        public HeaderSet getReceivedHeaders() {
+            return received;
+        }
+
+        @Override
+        public void sendHeaders(HeaderSet headers) throws IOException {
+            sentHeaders.putAll(headers);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            throw new IOException("Response codes are returned by the request handler.");
+        }
+
+        @Override
+        public String getType() {
+            return (String)received.getHeader(HeaderSet.TYPE);
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getLength() {
+            return body.length;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public DataInputStream openDataInputStream() {
+            return new DataInputStream(openInputStream());
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return out;
+        }
+
+        @Override
+        public DataOutputStream openDataOutputStream() {
+            return new DataOutputStream(out);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
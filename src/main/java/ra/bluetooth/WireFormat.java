@@ -0,0 +1,80 @@
+package ra.bluetooth;
+
+import ra.common.Envelope;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Envelope encodings supported on the Bluetooth wire, identified by the OBEX TYPE header.
+ *
+ * Peers offer their preferred format in the TYPE header of the OBEX CONNECT and the server echoes it
+ * back in the reply if it understands it. Peers that do not echo a TYPE get JSON, the original format.
+ */
+enum WireFormat {
+
+    JSON("text"),
+    BINARY("application/x-ra-envelope;v=" + EnvelopeCodec.VERSION);
+
+    private final String type;
+
+    WireFormat(String type) {
+        this.type = type;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    byte[] encode(Envelope envelope) {
+        if(this == BINARY) {
+            return EnvelopeCodec.encode(envelope);
+        }
+        return envelope.toJSON().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the envelopes in the body - more than one only for binary batch frames
+     */
+    List<Envelope> decode(byte[] buf, int length) throws IOException {
+        if(this == BINARY) {
+            return EnvelopeCodec.decodeAll(buf, 0, length);
+        }
+        Envelope envelope = Envelope.documentFactory();
+        envelope.fromJSON(new String(buf, 0, length, StandardCharsets.UTF_8));
+        return Collections.singletonList(envelope);
+    }
+
+    /**
+     * @return true if several envelopes can be packed into a single body
+     */
+    boolean supportsBatching() {
+        return this == BINARY;
+    }
+
+    /**
+     * @param type OBEX TYPE header value
+     * @return matching format; JSON when absent or unrecognized to stay compatible with older peers
+     */
+    static WireFormat fromType(String type) {
+        return BINARY.type.equals(type) ? BINARY : JSON;
+    }
+
+    /**
+     * @return the matching format, or null if the TYPE is not one we understand
+     */
+    static WireFormat negotiate(String type) {
+        for(WireFormat format : values()) {
+            if(format.type.equals(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    static WireFormat fromConfig(String value) {
+        return "json".equalsIgnoreCase(value) ? JSON : BINARY;
+    }
+}
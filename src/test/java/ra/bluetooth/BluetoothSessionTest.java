@@ -0,0 +1,53 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.network.NetworkStatus;
+
+import static org.junit.Assert.*;
+import static ra.bluetooth.BluetoothSession.State.*;
+
+public class BluetoothSessionTest {
+
+    @Test
+    public void stateTransitions() {
+        assertTrue(NEW.canMoveTo(OPEN));
+        assertFalse(NEW.canMoveTo(CONNECTED));
+        assertTrue(OPEN.canMoveTo(CONNECTING));
+        assertTrue(CONNECTING.canMoveTo(CONNECTED));
+        // Refused
+        assertTrue(CONNECTING.canMoveTo(OPEN));
+        // Disconnected, and dropped for a reconnect
+        assertTrue(CONNECTED.canMoveTo(OPEN));
+        assertTrue(CONNECTED.canMoveTo(NEW));
+        for(BluetoothSession.State state : BluetoothSession.State.values()) {
+            assertFalse(CLOSED.canMoveTo(state));
+            if(state != CLOSED) {
+                assertTrue(state.canMoveTo(CLOSED));
+            }
+        }
+    }
+
+    @Test
+    public void serviceStatusFollowsSessions() {
+        BluetoothService service = new BluetoothService();
+        service.setRadioStatus(NetworkStatus.CONNECTING);
+        service.sessionStateChanged(NEW, OPEN);
+        assertEquals(NetworkStatus.WARMUP, service.getNetworkState().networkStatus);
+        service.sessionStateChanged(OPEN, CONNECTING);
+        service.sessionStateChanged(CONNECTING, CONNECTED);
+        service.sessionStateChanged(NEW, OPEN);
+        service.sessionStateChanged(OPEN, CONNECTING);
+        service.sessionStateChanged(CONNECTING, CONNECTED);
+        assertEquals(2, service.sessions(CONNECTED));
+        assertEquals(NetworkStatus.CONNECTED, service.getNetworkState().networkStatus);
+
+        // One peer going away leaves the other connected
+        service.sessionStateChanged(CONNECTED, CLOSED);
+        assertEquals(NetworkStatus.CONNECTED, service.getNetworkState().networkStatus);
+        service.sessionStateChanged(CONNECTED, OPEN);
+        assertEquals(NetworkStatus.WARMUP, service.getNetworkState().networkStatus);
+        service.sessionStateChanged(OPEN, CLOSED);
+        assertEquals(0, service.sessions(OPEN));
+        assertEquals(NetworkStatus.CONNECTING, service.getNetworkState().networkStatus);
+    }
+}
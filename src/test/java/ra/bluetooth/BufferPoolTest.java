@@ -0,0 +1,79 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void readsPayloadsLargerThanInitialBuffer() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        byte[] payload = new byte[5000];
+        for(int i=0; i<payload.length; i++) {
+            payload[i] = (byte)i;
+        }
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(payload), -1, 8192)) {
+            assertEquals(payload.length, bytes.length());
+            for(int i=0; i<payload.length; i++) {
+                assertEquals(payload[i], bytes.array()[i]);
+            }
+        }
+    }
+
+    @Test
+    public void exactLengthHintDoesNotGrow() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        byte[] payload = new byte[256];
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(payload), payload.length, 8192)) {
+            assertEquals(256, bytes.length());
+            assertEquals(256, bytes.array().length);
+        }
+    }
+
+    @Test
+    public void buffersAreReused() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        byte[] first;
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(new byte[100]), -1, 8192)) {
+            first = bytes.array();
+        }
+        assertSame(first, pool.acquire(100));
+    }
+
+    @Test
+    public void decodesUTF8() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        String text = "{\"name\":\"Zoë\"}";
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), -1, 8192)) {
+            assertEquals(text, new String(bytes.array(), 0, bytes.length(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void lengthHintIsClampedToPooledSize() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(new byte[10]), Integer.MAX_VALUE - 1, Integer.MAX_VALUE)) {
+            assertEquals(10, bytes.length());
+            assertEquals(1024, bytes.array().length);
+        }
+    }
+
+    @Test
+    public void readsUpToMaxLength() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        try (BufferPool.Bytes bytes = pool.readFully(new ByteArrayInputStream(new byte[3000]), -1, 3000)) {
+            assertEquals(3000, bytes.length());
+        }
+    }
+
+    @Test(expected = BufferPool.TooLargeException.class)
+    public void bodyOverMaxLengthFails() throws IOException {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        pool.readFully(new ByteArrayInputStream(new byte[3001]), 100, 3000);
+    }
+}
@@ -0,0 +1,60 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChunkReassemblerTest {
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for(int i=0; i<length; i++) {
+            body[i] = (byte)i;
+        }
+        return body;
+    }
+
+    private static byte[] add(ChunkReassembler reassembler, String sender, long id, byte[] body, int offset, int length) {
+        return reassembler.add(sender, id, body.length, offset, Arrays.copyOfRange(body, offset, offset + length), length);
+    }
+
+    @Test
+    public void reassemblesOutOfOrderAndRepeatedChunks() {
+        ChunkReassembler reassembler = new ChunkReassembler(1024, 4096, 60 * 1000L);
+        byte[] body = body(250);
+        assertNull(add(reassembler, "a", 1, body, 200, 50));
+        assertNull(add(reassembler, "a", 1, body, 0, 100));
+        // Resent after a lost acknowledgement
+        assertNull(add(reassembler, "a", 1, body, 0, 100));
+        // Same id from another sender is another transfer
+        assertNull(add(reassembler, "b", 1, body, 100, 100));
+        assertEquals(2, reassembler.pending());
+        assertArrayEquals(body, add(reassembler, "a", 1, body, 100, 100));
+        assertEquals(1, reassembler.pending());
+        assertEquals(250, reassembler.pendingBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTransfersOverTheLimit() {
+        new ChunkReassembler(100, 100, 1000L).add("a", 1, 101, 0, new byte[10], 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChunksPastTheEnd() {
+        new ChunkReassembler(100, 100, 1000L).add("a", 1, 50, 40, new byte[20], 20);
+    }
+
+    @Test
+    public void dropsOldestTransferWhenFull() {
+        ChunkReassembler reassembler = new ChunkReassembler(100, 150, 60 * 1000L);
+        byte[] body = body(100);
+        assertNull(add(reassembler, "a", 1, body, 0, 10));
+        assertNull(add(reassembler, "a", 2, body, 0, 10));
+        assertEquals(1, reassembler.pending());
+        assertEquals(100, reassembler.pendingBytes());
+        // The first transfer is gone so its remainder starts a new one
+        assertNull(add(reassembler, "a", 1, body, 10, 90));
+    }
+}
@@ -0,0 +1,66 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakersTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+        CircuitBreakers breakers = new CircuitBreakers(3, 60 * 1000L, 60 * 1000L, 16, metrics);
+        breakers.failure("AA");
+        breakers.failure("AA");
+        assertTrue(breakers.allow("AA"));
+        // A success in between starts the count again
+        breakers.success("AA");
+        breakers.failure("AA");
+        breakers.failure("AA");
+        assertFalse(breakers.isOpen("AA"));
+        breakers.failure("AA");
+        assertTrue(breakers.isOpen("AA"));
+        assertFalse(breakers.allow("AA"));
+        assertTrue(breakers.allow("BB"));
+        assertEquals(Long.valueOf(1), metrics.counters().get(MetricsRegistry.CIRCUIT_OPENED));
+        assertEquals(Long.valueOf(1), metrics.counters().get(MetricsRegistry.CIRCUIT_REJECTED));
+        assertTrue(breakers.openCircuits().containsKey("AA"));
+    }
+
+    @Test
+    public void unreachableOpensAtOnceAndTrialsBackOffExponentially() throws InterruptedException {
+        CircuitBreakers breakers = new CircuitBreakers(3, 100, 1000, 16, new DefaultMetricsRegistry());
+        breakers.unreachable("AA");
+        assertFalse(breakers.allow("AA"));
+        Thread.sleep(150);
+        // One trial once the backoff is over
+        assertFalse(breakers.isOpen("AA"));
+        assertTrue(breakers.allow("AA"));
+        assertFalse(breakers.allow("AA"));
+        breakers.failure("AA");
+        // Backoff doubled to 200ms
+        Thread.sleep(100);
+        assertFalse(breakers.allow("AA"));
+        Thread.sleep(150);
+        assertTrue(breakers.allow("AA"));
+        breakers.success("AA");
+        assertTrue(breakers.allow("AA"));
+        assertTrue(breakers.openCircuits().isEmpty());
+    }
+
+    @Test
+    public void cancelledTrialLeavesTheNextSendToTry() throws InterruptedException {
+        CircuitBreakers breakers = new CircuitBreakers(1, 100, 1000, 16, new DefaultMetricsRegistry());
+        breakers.failure("AA");
+        Thread.sleep(150);
+        assertTrue(breakers.allow("AA"));
+        // No free session, so the device was never tried
+        breakers.cancelled("AA");
+        assertFalse(breakers.isOpen("AA"));
+        assertTrue(breakers.allow("AA"));
+        breakers.success("AA");
+        // Cancelling with the circuit closed changes nothing
+        breakers.cancelled("AA");
+        assertTrue(breakers.openCircuits().isEmpty());
+    }
+}
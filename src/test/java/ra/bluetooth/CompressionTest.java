@@ -0,0 +1,61 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<200; i++) {
+            sb.append("{\"network\":\"Bluetooth\",\"address\":\"0011223344").append(i).append("\"}");
+        }
+        byte[] payload = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Compression.DEFLATE.compress(payload, Deflater.DEFAULT_COMPRESSION);
+        assertTrue(compressed.length < payload.length / 4);
+
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        try (BufferPool.Bytes inflated = Compression.DEFLATE.decompress(pool, compressed, compressed.length, payload.length)) {
+            assertEquals(payload.length, inflated.length());
+            assertEquals(sb.toString(), new String(inflated.array(), 0, inflated.length(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBodyFails() throws IOException {
+        byte[] compressed = Compression.DEFLATE.compress(new byte[4096], Deflater.DEFAULT_COMPRESSION);
+        Compression.DEFLATE.decompress(new BufferPool(64, 1024, 2), compressed, compressed.length / 2, 8192);
+    }
+
+    @Test(expected = BufferPool.TooLargeException.class)
+    public void inflatingPastMaxLengthFails() throws IOException {
+        // Zeros deflate about a thousandfold
+        byte[] compressed = Compression.DEFLATE.compress(new byte[1024 * 1024], Deflater.BEST_COMPRESSION);
+        Compression.DEFLATE.decompress(new BufferPool(64, 1024, 2), compressed, compressed.length, 64 * 1024);
+    }
+
+    @Test
+    public void negotiatesFromMask() {
+        assertEquals(Compression.DEFLATE, Compression.select(Compression.supportedMask()));
+        assertEquals(Compression.NONE, Compression.select(Compression.NONE.mask()));
+        assertEquals(Compression.NONE, Compression.select(0));
+    }
+
+    @Test
+    public void appParametersRoundTrip() {
+        byte[] header = new AppParameters()
+                .putByte(AppParameters.COMPRESSION, Compression.DEFLATE.getId())
+                .putLong((byte)0x7F, 1234567890123L)
+                .toBytes();
+        AppParameters params = AppParameters.parse(header);
+        assertEquals(Compression.DEFLATE.getId(), params.getByte(AppParameters.COMPRESSION, -1));
+        assertEquals(1234567890123L, params.getLong((byte)0x7F, -1));
+        assertEquals(-1, params.getByte(AppParameters.SUPPORTED_COMPRESSION, -1));
+    }
+}
@@ -0,0 +1,58 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DefaultMetricsRegistryTest {
+
+    @Test
+    public void countersAreTotalledAndKeptByTag() {
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.count(MetricsRegistry.BYTES_OUT, "AA", 100);
+        registry.count(MetricsRegistry.BYTES_OUT, "BB", 20);
+        registry.count(MetricsRegistry.BYTES_OUT, "AA", 5);
+        registry.count(MetricsRegistry.PUT, 1);
+
+        assertEquals(Long.valueOf(125), registry.counters().get(MetricsRegistry.BYTES_OUT));
+        assertEquals(Long.valueOf(1), registry.counters().get(MetricsRegistry.PUT));
+        Map<String, Long> byPeer = registry.counters(MetricsRegistry.BYTES_OUT);
+        assertEquals(Long.valueOf(105), byPeer.get("AA"));
+        assertEquals(Long.valueOf(20), byPeer.get("BB"));
+        assertTrue(registry.counters(MetricsRegistry.BYTES_IN).isEmpty());
+
+        registry.reset();
+        assertTrue(registry.counters().isEmpty());
+    }
+
+    @Test
+    public void tagsPastTheMaximumAreCountedTogether() {
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry(2);
+        registry.count(MetricsRegistry.BYTES_IN, "AA", 1);
+        registry.count(MetricsRegistry.BYTES_IN, "BB", 1);
+        registry.count(MetricsRegistry.BYTES_IN, "CC", 1);
+        registry.count(MetricsRegistry.BYTES_IN, "DD", 1);
+        registry.count(MetricsRegistry.BYTES_IN, "AA", 1);
+        Map<String, Long> byPeer = registry.counters(MetricsRegistry.BYTES_IN);
+        assertEquals(Long.valueOf(2), byPeer.get("AA"));
+        assertEquals(Long.valueOf(2), byPeer.get(DefaultMetricsRegistry.OTHER));
+        assertFalse(byPeer.containsKey("CC"));
+        assertEquals(Long.valueOf(5), registry.counters().get(MetricsRegistry.BYTES_IN));
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinTheirBucket() {
+        DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        for(int i=1; i<=100; i++) {
+            registry.record(MetricsRegistry.CONNECT_TIME, i);
+        }
+        HistogramSnapshot snapshot = registry.histograms().get(MetricsRegistry.CONNECT_TIME);
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50, snapshot.getMean());
+        assertEquals(100, snapshot.getMax());
+        assertTrue(snapshot.getP50() >= 50 && snapshot.getP50() < 100);
+        assertTrue(snapshot.getP99() >= 99 && snapshot.getP99() <= 100);
+    }
+}
@@ -0,0 +1,47 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void packRoundTrip() {
+        long packed = DeviceRegistry.pack("00:1a:7D:da:71:13");
+        assertEquals(0x001A7DDA7113L, packed);
+        assertEquals("001A7DDA7113", DeviceRegistry.unpack(packed));
+        assertEquals(packed, DeviceRegistry.pack("001A7DDA7113"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortAddress() {
+        DeviceRegistry.pack("001A7DDA71");
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenWhenFull() throws InterruptedException {
+        DeviceRegistry<String> registry = new DeviceRegistry<>(10, 0);
+        for(int i=0; i<10; i++) {
+            registry.put(DeviceRegistry.unpack(i), "device" + i);
+            Thread.sleep(2);
+        }
+        registry.touch(DeviceRegistry.unpack(0));
+        registry.put(DeviceRegistry.unpack(10), "device10");
+        assertTrue(registry.size() <= 10);
+        assertEquals("device0", registry.get(DeviceRegistry.unpack(0)));
+        assertEquals("device10", registry.get(DeviceRegistry.unpack(10)));
+        assertNull(registry.get(DeviceRegistry.unpack(1)));
+    }
+
+    @Test
+    public void expiresUnseenEntries() throws InterruptedException {
+        DeviceRegistry<String> registry = new DeviceRegistry<>(10, 20);
+        registry.put("001122334455", "device");
+        assertTrue(registry.contains("00:11:22:33:44:55"));
+        Thread.sleep(40);
+        assertNull(registry.get("001122334455"));
+        assertEquals(1, registry.evictExpired());
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,55 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryEventsTest {
+
+    @Test
+    public void eventsForADeviceAreProcessedInOrder() throws Exception {
+        DiscoveryEvents events = new DiscoveryEvents(4, 1000, new DefaultMetricsRegistry());
+        List<Integer> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for(int i=0; i<500; i++) {
+            int n = i;
+            assertTrue(events.publish("001122334455", () -> processed.add(n)));
+        }
+        events.publish("001122334455", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for(int i=0; i<500; i++) {
+            assertEquals(Integer.valueOf(i), processed.get(i));
+        }
+        events.shutdown();
+    }
+
+    @Test
+    public void overflowIsDroppedAndCounted() throws Exception {
+        DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+        DiscoveryEvents events = new DiscoveryEvents(1, 2, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        events.publish("A", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(events.publish("A", () -> {}));
+        assertTrue(events.publish("B", () -> {}));
+        assertFalse(events.publish("C", () -> {}));
+        assertEquals(1, events.dropped());
+        assertEquals(3, events.published());
+        assertEquals(Long.valueOf(1), metrics.counters().get(MetricsRegistry.DISCOVERY_EVENTS_DROPPED));
+        release.countDown();
+        events.shutdown();
+    }
+}
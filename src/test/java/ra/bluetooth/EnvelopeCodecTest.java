@@ -0,0 +1,159 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.Envelope;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeCodecTest {
+
+    private static final Logger LOG = Logger.getLogger(EnvelopeCodecTest.class.getName());
+
+    @Test
+    public void roundTripsValues() throws IOException {
+        Map<String, Object> m = new HashMap<>();
+        m.put("string", "Zoë");
+        m.put("int", -42);
+        m.put("long", Long.MAX_VALUE);
+        m.put("double", 3.25d);
+        m.put("true", true);
+        m.put("null", null);
+        m.put("bytes", new byte[]{1, 2, 3});
+        List<Object> list = new ArrayList<>();
+        for(int i=0; i<3; i++) {
+            Map<String, Object> peer = new HashMap<>();
+            peer.put("address", "00112233445"+i);
+            peer.put("network", "Bluetooth");
+            list.add(peer);
+        }
+        m.put("list", list);
+
+        byte[] encoded = EnvelopeCodec.encodeValue(m);
+        Map<String, Object> decoded = (Map<String, Object>)EnvelopeCodec.decodeValue(encoded, 0, encoded.length);
+
+        assertEquals("Zoë", decoded.get("string"));
+        assertEquals(-42, decoded.get("int"));
+        assertEquals(Long.MAX_VALUE, decoded.get("long"));
+        assertEquals(3.25d, decoded.get("double"));
+        assertEquals(Boolean.TRUE, decoded.get("true"));
+        assertTrue(decoded.containsKey("null"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[])decoded.get("bytes"));
+        assertEquals(list, decoded.get("list"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFrames() throws IOException {
+        byte[] encoded = EnvelopeCodec.encodeValue(Collections.singletonMap("key", "value"));
+        EnvelopeCodec.decodeValue(encoded, 0, encoded.length - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDeeplyNestedFrames() throws IOException {
+        // A list holding a list and so on, two bytes a level; deep enough to overflow the stack if recursed into
+        byte[] nested = new byte[200000];
+        for(int i=0; i<nested.length; i+=2) {
+            nested[i] = 10;
+            nested[i + 1] = 1;
+        }
+        EnvelopeCodec.decodeValue(nested, 0, nested.length);
+    }
+
+    @Test
+    public void hugeCountsDoNotPreallocate() {
+        // Lists nested to the limit, each claiming about all the bytes left as entries; a receiver sizing them
+        // up front allocates gigabytes before finding the frame short
+        byte[] nested = new byte[4 * 1024 * 1024];
+        int pos = 0;
+        for(int level=0; level<EnvelopeCodec.MAX_DEPTH; level++) {
+            nested[pos++] = 10;
+            long count = nested.length - pos - 4;
+            for(int i=0; i<4; i++) {
+                nested[pos++] = (byte)((count & 0x7F) | (i < 3 ? 0x80 : 0));
+                count >>>= 7;
+            }
+        }
+        // The rest is nulls, enough for the innermost list only
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        try {
+            EnvelopeCodec.decodeValue(nested, 0, nested.length);
+            fail("Frame short of entries was decoded.");
+        } catch (IOException e) {
+            // Expected
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("allocated "+allocated+" bytes", allocated < 128L * 1024 * 1024);
+    }
+
+    @Test
+    public void batchFrameRoundTrip() throws IOException {
+        List<Envelope> envelopes = new ArrayList<>();
+        List<byte[]> frames = new ArrayList<>();
+        for(int i=0; i<3; i++) {
+            Envelope envelope = Envelope.documentFactory();
+            envelope.addContent("message "+i);
+            envelopes.add(envelope);
+            frames.add(EnvelopeCodec.encode(envelope));
+        }
+        byte[] batch = EnvelopeCodec.encodeBatch(frames);
+        List<Envelope> decoded = EnvelopeCodec.decodeAll(batch, 0, batch.length);
+        assertEquals(3, decoded.size());
+        for(int i=0; i<3; i++) {
+            assertEquals(envelopes.get(i).getId(), decoded.get(i).getId());
+        }
+        // A single frame decodes to a single envelope
+        assertEquals(1, EnvelopeCodec.decodeAll(frames.get(0), 0, frames.get(0).length).size());
+    }
+
+    @Test
+    public void binaryIsSmallerThanJSON() throws IOException {
+        Envelope envelope = Envelope.documentFactory();
+        List<Map<String, Object>> peers = new ArrayList<>();
+        for(int i=0; i<50; i++) {
+            Map<String, Object> peer = new HashMap<>();
+            peer.put("network", "Bluetooth");
+            peer.put("address", String.format("0011223344%02d", i));
+            peer.put("serviceURL", String.format("btgoep://0011223344%02d:12;authenticate=false;encrypt=false", i));
+            peers.add(peer);
+        }
+        envelope.addContent(peers);
+
+        int iterations = 1000;
+        byte[] json = null;
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            json = envelope.toJSON().getBytes(StandardCharsets.UTF_8);
+        }
+        long jsonEncodeNs = (System.nanoTime() - start) / iterations;
+        byte[] binary = null;
+        start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            binary = EnvelopeCodec.encode(envelope);
+        }
+        long binaryEncodeNs = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            Envelope.documentFactory().fromJSON(new String(json, StandardCharsets.UTF_8));
+        }
+        long jsonDecodeNs = (System.nanoTime() - start) / iterations;
+        Envelope decoded = null;
+        start = System.nanoTime();
+        for(int i=0; i<iterations; i++) {
+            decoded = Envelope.documentFactory();
+            EnvelopeCodec.decode(binary, 0, binary.length, decoded);
+        }
+        long binaryDecodeNs = (System.nanoTime() - start) / iterations;
+
+        LOG.info("JSON: "+json.length+" bytes, encode "+jsonEncodeNs+"ns, decode "+jsonDecodeNs+"ns");
+        LOG.info("Binary: "+binary.length+" bytes, encode "+binaryEncodeNs+"ns, decode "+binaryDecodeNs+"ns");
+        assertTrue(binary.length < json.length);
+        assertEquals(envelope.getId(), decoded.getId());
+    }
+}
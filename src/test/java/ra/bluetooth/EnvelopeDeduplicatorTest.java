@@ -0,0 +1,66 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeDeduplicatorTest {
+
+    @Test
+    public void dropsRepeatedIds() {
+        EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(100, 60 * 1000L);
+        assertTrue(deduplicator.firstSeen("a"));
+        assertTrue(deduplicator.firstSeen("b"));
+        assertFalse(deduplicator.firstSeen("a"));
+        // Envelopes without ids cannot be told apart
+        assertTrue(deduplicator.firstSeen(null));
+        assertTrue(deduplicator.firstSeen(null));
+    }
+
+    @Test
+    public void forgottenIdsAreNewAgain() {
+        EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(100, 60 * 1000L);
+        assertTrue(deduplicator.firstSeen("a"));
+        deduplicator.forget("a");
+        assertTrue(deduplicator.firstSeen("a"));
+        assertFalse(deduplicator.firstSeen("a"));
+    }
+
+    @Test
+    public void allSeenChecksWithoutRemembering() {
+        EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(100, 60 * 1000L);
+        deduplicator.firstSeen("a");
+        long[] hashes = {EnvelopeDeduplicator.hash("a"), EnvelopeDeduplicator.hash("b")};
+        assertFalse(deduplicator.allSeen(hashes));
+        assertTrue(deduplicator.firstSeen("b"));
+        assertTrue(deduplicator.allSeen(hashes));
+    }
+
+    @Test
+    public void forgetsOldestGenerationWhenFull() {
+        EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(4, 60 * 1000L);
+        for(int i=0; i<6; i++) {
+            assertTrue(deduplicator.firstSeen("id"+i));
+        }
+        assertTrue(deduplicator.size() <= 4);
+        assertFalse(deduplicator.firstSeen("id5"));
+        assertTrue(deduplicator.firstSeen("id0"));
+    }
+
+    @Test
+    public void forgetsIdsAfterTheWindow() throws InterruptedException {
+        EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(100, 20);
+        deduplicator.firstSeen("a");
+        Thread.sleep(50);
+        assertTrue(deduplicator.firstSeen("a"));
+    }
+
+    @Test
+    public void hashesRoundTrip() {
+        long[] hashes = {EnvelopeDeduplicator.hash("a"), -1L, 0L};
+        assertArrayEquals(hashes, EnvelopeDeduplicator.fromBytes(EnvelopeDeduplicator.toBytes(hashes)));
+        // 32 ids do not fit in one application parameter
+        assertNull(EnvelopeDeduplicator.toBytes(new long[32]));
+        assertNull(EnvelopeDeduplicator.fromBytes(new byte[7]));
+    }
+}
@@ -0,0 +1,84 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FriendlyNameResolverTest {
+
+    private static class SlowDevice implements BluetoothStack.Device {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public String getBluetoothAddress() {
+            return "001122334455";
+        }
+
+        @Override
+        public String getFriendlyName(boolean alwaysAsk) {
+            if(!alwaysAsk) {
+                // Not known from the inquiry
+                return null;
+            }
+            requests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "phone";
+        }
+
+        @Override
+        public boolean isAuthenticated() {
+            return false;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        @Override
+        public boolean isTrustedDevice() {
+            return false;
+        }
+
+        @Override
+        public int getMajorDeviceClass() {
+            return 0x200;
+        }
+
+        @Override
+        public int getMinorDeviceClass() {
+            return 0;
+        }
+
+        @Override
+        public int getServiceClasses() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void resolvesOnceOffTheCallerAndCaches() throws Exception {
+        SlowDevice device = new SlowDevice();
+        FriendlyNameResolver resolver = new FriendlyNameResolver(16, 0, 1);
+        BlockingQueue<String> resolved = new LinkedBlockingQueue<>();
+        assertNull(resolver.resolve(device, resolved::add));
+        assertNull(resolver.resolve(device, resolved::add));
+        device.release.countDown();
+        assertEquals("phone", resolved.poll(5, TimeUnit.SECONDS));
+        assertEquals("phone", resolved.poll(5, TimeUnit.SECONDS));
+        assertEquals("phone", resolver.resolve(device, resolved::add));
+        assertEquals(1, device.requests.get());
+        resolver.shutdown();
+    }
+}
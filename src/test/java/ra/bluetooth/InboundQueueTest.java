@@ -0,0 +1,67 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.Client;
+import ra.common.Envelope;
+import ra.common.messaging.MessageProducer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class InboundQueueTest {
+
+    private static class BlockingProducer implements MessageProducer {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Envelope> sent = new CopyOnWriteArrayList<>();
+        final List<Envelope> deadLettered = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(envelope);
+            return true;
+        }
+
+        @Override
+        public boolean send(Envelope envelope, Client client) {
+            return send(envelope);
+        }
+
+        @Override
+        public boolean deadLetter(Envelope envelope) {
+            deadLettered.add(envelope);
+            return true;
+        }
+    }
+
+    @Test
+    public void enqueuesWithoutWaitingOnTheBusAndDeadLettersOverflow() throws Exception {
+        BlockingProducer producer = new BlockingProducer();
+        BluetoothService service = new BluetoothService(producer, null);
+        InboundQueue queue = new InboundQueue(service, 2, 16);
+
+        // The first is taken by the dispatcher and held up in the bus, the next two fill the queue
+        assertTrue(queue.offer(Envelope.documentFactory()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(queue.depth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(queue.offer(Envelope.documentFactory()));
+        assertTrue(queue.offer(Envelope.documentFactory()));
+        assertFalse(queue.offer(Envelope.documentFactory()));
+        assertEquals(1, producer.deadLettered.size());
+
+        producer.release.countDown();
+        queue.shutdown(5000);
+        assertEquals(3, producer.sent.size());
+        assertEquals(1, producer.deadLettered.size());
+    }
+}
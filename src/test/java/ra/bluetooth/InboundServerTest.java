@@ -0,0 +1,80 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import javax.obex.ClientSession;
+import javax.obex.HeaderSet;
+import javax.obex.ResponseCodes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class InboundServerTest {
+
+    @Test
+    public void connectionsBeyondTheLimitWaitForOneToEnd() throws Exception {
+        SimulatedAir air = new SimulatedAir(0, 0, 672, 0.0, 10, 0, 1);
+        SimulatedBluetoothStack a = new SimulatedBluetoothStack(air, air.nextAddress(), "a", 1, 5000);
+        SimulatedBluetoothStack b = new SimulatedBluetoothStack(air, air.nextAddress(), "b", 1, 5000);
+        BluetoothService service = new BluetoothService();
+        service.stack = b;
+        InboundServer server = new InboundServer(service, "btgoep://localhost:11111111111111111111111111111123;name=1M5", 1, 60 * 1000L, true);
+        assertTrue(server.start());
+        assertTrue(b.isDiscoverable());
+        String url = "btgoep://" + b.address + ":1";
+
+        ClientSession first = a.openClient(url);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, first.connect(first.createHeaderSet()).getResponseCode());
+        assertEquals(1, server.connections());
+
+        ClientSession second = a.openClient(url);
+        CompletableFuture<Integer> connected = CompletableFuture.supplyAsync(() -> {
+            try {
+                HeaderSet reply = second.connect(second.createHeaderSet());
+                return reply.getResponseCode();
+            } catch (Exception e) {
+                return -1;
+            }
+        });
+        try {
+            connected.get(300, TimeUnit.MILLISECONDS);
+            fail("Second connection was served while the first was open");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        first.disconnect(first.createHeaderSet());
+        assertEquals(Integer.valueOf(ResponseCodes.OBEX_HTTP_OK), connected.get(5, TimeUnit.SECONDS));
+
+        server.shutdown();
+        assertFalse(b.isDiscoverable());
+        a.shutdown();
+        b.shutdown();
+    }
+
+    @Test
+    public void connectionEndsWhenTheClientClosesWithoutDisconnecting() throws Exception {
+        SimulatedAir air = new SimulatedAir(0, 0, 672, 0.0, 10, 0, 1);
+        SimulatedBluetoothStack a = new SimulatedBluetoothStack(air, air.nextAddress(), "a", 1, 5000);
+        SimulatedBluetoothStack b = new SimulatedBluetoothStack(air, air.nextAddress(), "b", 1, 5000);
+        BluetoothService service = new BluetoothService();
+        service.stack = b;
+        InboundServer server = new InboundServer(service, "btgoep://localhost:11111111111111111111111111111124;name=1M5", 1, 60 * 1000L, true);
+        assertTrue(server.start());
+        String url = "btgoep://" + b.address + ":1";
+
+        ClientSession first = a.openClient(url);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, first.connect(first.createHeaderSet()).getResponseCode());
+        assertEquals(1, server.connections());
+        first.close();
+
+        // Served again well before the idle timeout
+        ClientSession second = a.openClient(url);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, second.connect(second.createHeaderSet()).getResponseCode());
+
+        server.shutdown();
+        a.shutdown();
+        b.shutdown();
+    }
+}
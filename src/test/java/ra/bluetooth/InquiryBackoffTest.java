@@ -0,0 +1,37 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class InquiryBackoffTest {
+
+    private static Set<String> found(String... addresses) {
+        return new HashSet<>(Arrays.asList(addresses));
+    }
+
+    @Test
+    public void backsOffWhileStableAndSpeedsUpOnChurn() {
+        InquiryBackoff backoff = new InquiryBackoff(1000, 8000, 0.1);
+        assertEquals(1000, backoff.intervalMs());
+        // First inquiry finds everything new
+        assertEquals(1000, backoff.inquiryCompleted(found("A", "B", "C")));
+        assertEquals(2000, backoff.inquiryCompleted(found("A", "B", "C")));
+        assertEquals(4000, backoff.inquiryCompleted(found("A", "B", "C")));
+        assertEquals(8000, backoff.inquiryCompleted(found("A", "B", "C")));
+        assertEquals(8000, backoff.inquiryCompleted(found("A", "B", "C")));
+        // One vanished and one new out of four
+        assertEquals(4000, backoff.inquiryCompleted(found("A", "B", "D")));
+    }
+
+    @Test
+    public void emptyNeighborhoodBacksOff() {
+        InquiryBackoff backoff = new InquiryBackoff(1000, 4000, 0.1);
+        assertEquals(2000, backoff.inquiryCompleted(found()));
+        assertEquals(4000, backoff.inquiryCompleted(found()));
+    }
+}
@@ -0,0 +1,85 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueuesTest {
+
+    private static final class RecordingProducer extends MockProducer {
+        final List<Envelope> sent = new CopyOnWriteArrayList<>();
+        final List<Envelope> deadLettered = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            sent.add(envelope);
+            return true;
+        }
+
+        @Override
+        public boolean deadLetter(Envelope envelope) {
+            deadLettered.add(envelope);
+            return true;
+        }
+    }
+
+    private static Envelope envelopeTo(NetworkPeer peer) {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addExternalRoute(BluetoothService.class.getName(), BluetoothService.OPERATION_SEND, new NetworkPeer(Network.Bluetooth), peer);
+        return envelope;
+    }
+
+    @Test
+    public void deadLetteredEnvelopeIsNotAlsoSentBack() throws InterruptedException {
+        RecordingProducer producer = new RecordingProducer();
+        BluetoothService service = new BluetoothService(producer, null);
+        service.circuitBreakers = new CircuitBreakers(3, 1000, 60 * 1000L, 16, service.metrics);
+        // One envelope queued, each sent on its own
+        service.outboundQueues = new OutboundQueues(service, 1, OverflowPolicy.DEAD_LETTER, 0, 0, 1, 60 * 1000L);
+        NetworkPeer peer = new NetworkPeer(Network.Bluetooth);
+        peer.getDid().getPublicKey().setAddress("001122334455");
+
+        Envelope first = envelopeTo(peer);
+        Envelope queued = envelopeTo(peer);
+        Envelope overflow = envelopeTo(peer);
+        // Holding the breakers stops the writer at the send of the first envelope
+        synchronized (service.circuitBreakers) {
+            service.handleDocument(first);
+            long deadline = System.currentTimeMillis() + 5000;
+            while(service.outboundQueues.depths().get("001122334455") != 0) {
+                assertTrue("writer did not take the first envelope", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            service.handleDocument(queued);
+            service.handleDocument(overflow);
+            assertEquals(1, producer.deadLettered.size());
+            assertSame(overflow, producer.deadLettered.get(0));
+        }
+        service.outboundQueues.shutdown(5000);
+        assertFalse(producer.sent.contains(overflow));
+        assertEquals(1, producer.deadLettered.size());
+    }
+
+    @Test
+    public void sendOutGivesUpAfterTheTimeout() {
+        BluetoothService service = new BluetoothService(new RecordingProducer(), null);
+        service.circuitBreakers = new CircuitBreakers(3, 1000, 60 * 1000L, 16, service.metrics);
+        service.outboundQueues = new OutboundQueues(service, 1, OverflowPolicy.BLOCK, 60 * 1000L, 0, 1, 60 * 1000L);
+        service.sendOutTimeoutMs = 200;
+        NetworkPeer peer = new NetworkPeer(Network.Bluetooth);
+        peer.getDid().getPublicKey().setAddress("001122334455");
+        // The writer is held at the send until the breakers are released
+        synchronized (service.circuitBreakers) {
+            long start = System.currentTimeMillis();
+            assertFalse(service.sendOut(envelopeTo(peer)));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        service.outboundQueues.shutdown(5000);
+    }
+}
@@ -0,0 +1,149 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PeerExchangeTest {
+
+    private static final class TestPeer extends NetworkPeer {
+        private final String id;
+        private final String version;
+
+        private TestPeer(String id, String version) {
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String toJSON() {
+            return "{\"id\":\""+id+"\",\"v\":\""+version+"\"}";
+        }
+
+        @Override
+        public Map<String, Object> toMap() {
+            Map<String, Object> m = new HashMap<>();
+            m.put("id", id);
+            m.put("v", version);
+            return m;
+        }
+    }
+
+    private static Set<String> ids(Collection<Map<String, Object>> peers) {
+        Set<String> ids = new HashSet<>();
+        for(Map<String, Object> peer : peers) {
+            ids.add(peer.get("id")+"@"+peer.get("v"));
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> changed(PeerExchange.Outgoing outgoing) {
+        return (Map<String, Object>)outgoing.content.get(PeerExchange.PEERS);
+    }
+
+    @Test
+    public void sendsOnlyChangesOnceAcknowledged() {
+        PeerExchange a = new PeerExchange(16);
+        PeerExchange b = new PeerExchange(16);
+        List<NetworkPeer> peers = new ArrayList<>(Arrays.asList(new TestPeer("p1", "1"), new TestPeer("p2", "1"), new TestPeer("p3", "1")));
+
+        PeerExchange.Outgoing first = a.outgoing("b", peers);
+        assertTrue(PeerExchange.isDelta(first.content));
+        assertEquals(3, changed(first).size());
+        assertEquals(3, b.incoming("a", first.content).size());
+        first.completed(true);
+
+        // Nothing changed
+        PeerExchange.Outgoing same = a.outgoing("b", peers);
+        assertTrue(changed(same).isEmpty());
+        assertEquals(3, b.incoming("a", same.content).size());
+        same.completed(true);
+
+        peers.set(1, new TestPeer("p2", "2"));
+        peers.remove(2);
+        peers.add(new TestPeer("p4", "1"));
+        PeerExchange.Outgoing delta = a.outgoing("b", peers);
+        assertEquals(new HashSet<>(Arrays.asList("p2", "p4")), changed(delta).keySet());
+        assertEquals(Arrays.asList("p3"), delta.content.get(PeerExchange.REMOVED));
+        assertEquals(new HashSet<>(Arrays.asList("p1@1", "p2@2", "p4@1")), ids(b.incoming("a", delta.content)));
+        // Another neighbor still gets the whole list
+        assertEquals(3, changed(a.outgoing("c", peers)).size());
+    }
+
+    @Test
+    public void resendsChangesThatWereNotAcknowledged() {
+        PeerExchange a = new PeerExchange(16);
+        List<NetworkPeer> peers = Arrays.asList(new TestPeer("p1", "1"), new TestPeer("p2", "1"));
+        a.outgoing("b", peers).completed(false);
+        assertEquals(2, changed(a.outgoing("b", peers)).size());
+    }
+
+    @Test
+    public void changesTheReceiverRefusedAreFollowedByTheWholeList() {
+        PeerExchange a = new PeerExchange(16);
+        PeerExchange b = new PeerExchange(16);
+        PeerExchange.Outgoing first = a.outgoing("b", Arrays.asList(new TestPeer("p1", "1")));
+        b.incoming("a", first.content);
+        first.completed(true);
+
+        // b applies the changes but cannot hand the envelope on, so dead letters it and refuses the put
+        PeerExchange.Outgoing refused = a.outgoing("b", Arrays.asList(new TestPeer("p1", "2")));
+        b.incoming("a", refused.content);
+        refused.completed(false);
+
+        PeerExchange.Outgoing next = a.outgoing("b", Arrays.asList(new TestPeer("p1", "2"), new TestPeer("p2", "1")));
+        assertEquals(Boolean.TRUE, next.content.get(PeerExchange.FULL));
+        assertEquals(new HashSet<>(Arrays.asList("p1@2", "p2@1")), ids(b.incoming("a", next.content)));
+        next.completed(true);
+        // In step again; b has no reason to ask for the whole list
+        assertNull(b.outgoing("a", new ArrayList<>()).content.get(PeerExchange.RESYNC));
+    }
+
+    @Test
+    public void deltasOnlyForDevicesThatAgreed() {
+        PeerExchange a = new PeerExchange(16);
+        assertFalse(a.isSupported("00:11"));
+        a.supported("00:11", true);
+        assertTrue(a.isSupported("00:11"));
+        // Reconnected to an older peer
+        a.supported("00:11", false);
+        assertFalse(a.isSupported("00:11"));
+    }
+
+    @Test
+    public void receiverOutOfStepRequestsTheWholeList() {
+        PeerExchange a = new PeerExchange(16);
+        List<NetworkPeer> peers = Arrays.asList(new TestPeer("p1", "1"), new TestPeer("p2", "1"));
+        a.outgoing("b", peers).completed(true);
+
+        // b restarted and lost what a sent before
+        PeerExchange b = new PeerExchange(16);
+        PeerExchange.Outgoing delta = a.outgoing("b", Arrays.asList(new TestPeer("p1", "2"), new TestPeer("p2", "1")));
+        assertEquals(1, changed(delta).size());
+        assertEquals(1, b.incoming("a", delta.content).size());
+        delta.completed(true);
+
+        PeerExchange.Outgoing reply = b.outgoing("a", new ArrayList<>());
+        assertEquals(Boolean.TRUE, reply.content.get(PeerExchange.RESYNC));
+        a.incoming("b", reply.content);
+        PeerExchange.Outgoing whole = a.outgoing("b", Arrays.asList(new TestPeer("p1", "2"), new TestPeer("p2", "1")));
+        assertEquals(Boolean.TRUE, whole.content.get(PeerExchange.FULL));
+        assertEquals(new HashSet<>(Arrays.asList("p1@2", "p2@1")), ids(b.incoming("a", whole.content)));
+    }
+}
@@ -0,0 +1,122 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+import ra.common.network.NetworkPeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PeerStoreTest {
+
+    private static final class TestPeer extends NetworkPeer {
+        private final String version;
+
+        private TestPeer(String version) {
+            this.version = version;
+        }
+
+        @Override
+        public Map<String, Object> toMap() {
+            Map<String, Object> m = new HashMap<>();
+            m.put("v", version);
+            return m;
+        }
+    }
+
+    private static File tempLog() throws IOException {
+        File dir = Files.createTempDirectory("peerstore").toFile();
+        dir.deleteOnExit();
+        File log = new File(dir, "peers.log");
+        log.deleteOnExit();
+        return log;
+    }
+
+    @Test
+    public void reloadKeepsLatestState() throws IOException {
+        File log = tempLog();
+        PeerStore store = new PeerStore(log, 1000);
+        assertTrue(store.load());
+        store.saveService("001122334455", "btgoep://001122334455:12", "RA", "ra-1");
+        store.saveService("001122334466", "btgoep://001122334466:3", null, null);
+        store.saveService("001122334455", "btgoep://001122334455:13", "RA", "ra-1");
+        store.removeService("001122334466");
+        store.close();
+
+        PeerStore reloaded = new PeerStore(log, 1000);
+        assertTrue(reloaded.load());
+        Map<String, Map<String, Object>> devices = reloaded.devices();
+        assertEquals("btgoep://001122334455:13", devices.get("001122334455").get(PeerStore.SERVICE_URL));
+        assertEquals("ra-1", devices.get("001122334455").get(PeerStore.RA_ID));
+        assertNull(devices.get("001122334466").get(PeerStore.SERVICE_URL));
+        reloaded.close();
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        File log = tempLog();
+        PeerStore store = new PeerStore(log, 1000);
+        store.load();
+        store.saveService("001122334455", "btgoep://001122334455:12", null, null);
+        store.close();
+        long intact = log.length();
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.seek(intact);
+            raf.writeInt(100);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        PeerStore reloaded = new PeerStore(log, 1000);
+        assertTrue(reloaded.load());
+        assertEquals(intact, log.length());
+        assertEquals(1, reloaded.devices().size());
+        reloaded.close();
+    }
+
+    @Test
+    public void compactsOnceMostRecordsAreStale() throws IOException {
+        File log = tempLog();
+        PeerStore store = new PeerStore(log, 10);
+        store.load();
+        store.saveService("001122334455", "btgoep://001122334455:0", null, null);
+        long record = log.length();
+        for(int i=10; i<50; i++) {
+            store.saveService("001122334455", "btgoep://001122334455:" + i, null, null);
+        }
+        store.close();
+        assertTrue("log was not compacted: " + log.length(), log.length() <= 11 * record);
+
+        PeerStore reloaded = new PeerStore(log, 10);
+        reloaded.load();
+        assertEquals("btgoep://001122334455:49", reloaded.devices().get("001122334455").get(PeerStore.SERVICE_URL));
+        reloaded.close();
+    }
+
+    @Test
+    public void peersAreSavedOnlyWhenChanged() throws IOException {
+        File log = tempLog();
+        PeerStore store = new PeerStore(log, 1000);
+        store.load();
+        store.savePeer("001122334455", new TestPeer("1"));
+        store.savePeer("001122334466", new TestPeer("1"));
+        long saved = log.length();
+        store.savePeer("001122334455", new TestPeer("1"));
+        assertEquals(saved, log.length());
+        store.savePeer("001122334455", new TestPeer("2"));
+        assertTrue(log.length() > saved);
+        store.removePeer("001122334466");
+        store.close();
+
+        PeerStore reloaded = new PeerStore(log, 1000);
+        reloaded.load();
+        assertEquals(Collections.singleton("001122334455"), reloaded.peerAddresses());
+        reloaded.close();
+    }
+}
@@ -0,0 +1,62 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PowerMonitorTest {
+
+    private static class FakeSource implements PowerStateSource {
+        private volatile boolean on;
+
+        @Override
+        public boolean isPowerOn() {
+            return on;
+        }
+    }
+
+    @Test
+    public void flapsWithinDebounceAreIgnored() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.on = true;
+        PowerMonitor monitor = new PowerMonitor(source, 50, 10, 1000);
+        List<Boolean> changes = new ArrayList<>();
+        monitor.addListener(changes::add);
+
+        monitor.check();
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0));
+
+        source.on = false;
+        monitor.check();
+        source.on = true;
+        monitor.check();
+        Thread.sleep(60);
+        monitor.check();
+        assertEquals(1, changes.size());
+
+        source.on = false;
+        monitor.check();
+        assertEquals(1, changes.size());
+        Thread.sleep(60);
+        monitor.check();
+        assertEquals(2, changes.size());
+        assertFalse(changes.get(1));
+        assertFalse(monitor.isPowerOn());
+    }
+
+    @Test
+    public void pollsFastAroundChangesOnly() {
+        FakeSource source = new FakeSource();
+        PowerMonitor slow = new PowerMonitor(source, 500, 10, 60000);
+        slow.check();
+        // Just started - still settling
+        assertEquals(10, slow.nextPollMs());
+        source.on = true;
+        slow.check();
+        assertEquals(500, slow.nextPollMs());
+    }
+}
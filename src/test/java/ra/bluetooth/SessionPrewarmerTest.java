@@ -0,0 +1,73 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionPrewarmerTest {
+
+    private static final class RecordingPool extends BluetoothSessionPool {
+        private final List<String> warmed = Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingPool() {
+            super(null, null, 8, 60 * 1000L, 30 * 1000L, 1000L, 2, 60 * 1000L);
+        }
+
+        @Override
+        boolean prewarm(String address, String url) {
+            warmed.add(address);
+            return true;
+        }
+    }
+
+    private static void awaitWarmed(RecordingPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pool.warmed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give a stray extra warm a chance to show up
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void warmsDiscoveredPeers() throws InterruptedException {
+        RecordingPool pool = new RecordingPool();
+        SessionPrewarmer prewarmer = new SessionPrewarmer(pool, 2, 3, 32);
+        prewarmer.discovered("AA", "btgoep://AA:1");
+        prewarmer.discovered("BB", null);
+        awaitWarmed(pool, 1);
+        assertEquals(Arrays.asList("AA"), pool.warmed);
+        prewarmer.shutdown();
+    }
+
+    @Test
+    public void rewarmsMostUsedPeersWithinBudget() throws InterruptedException {
+        RecordingPool pool = new RecordingPool();
+        SessionPrewarmer prewarmer = new SessionPrewarmer(pool, 2, 3, 32);
+        for(int i=0; i<6; i++) {
+            prewarmer.used("AA", "btgoep://AA:1");
+        }
+        for(int i=0; i<4; i++) {
+            prewarmer.used("BB", "btgoep://BB:1");
+            prewarmer.used("CC", "btgoep://CC:1");
+        }
+        prewarmer.used("DD", "btgoep://DD:1");
+        prewarmer.rewarm();
+        awaitWarmed(pool, 2);
+        assertEquals(2, pool.warmed.size());
+        assertEquals("AA", pool.warmed.get(0));
+        assertFalse(pool.warmed.contains("DD"));
+
+        // Counts halve each round, so only AA is still in recent use
+        pool.warmed.clear();
+        prewarmer.rewarm();
+        awaitWarmed(pool, 1);
+        assertEquals(Arrays.asList("AA"), pool.warmed);
+        prewarmer.shutdown();
+    }
+}
@@ -0,0 +1,155 @@
+package ra.bluetooth;
+
+import org.junit.Test;
+
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.UUID;
+import javax.obex.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SimulatedBluetoothStackTest {
+
+    private static final int[] ATTRS = {0x0100, 0x5555};
+
+    private static class Recorder implements BluetoothStack.Listener {
+        final List<BluetoothStack.Device> devices = new CopyOnWriteArrayList<>();
+        final List<BluetoothStack.Service> services = new CopyOnWriteArrayList<>();
+        final BlockingQueue<Integer> completions = new LinkedBlockingQueue<>();
+
+        @Override
+        public void deviceDiscovered(BluetoothStack.Device device) {
+            devices.add(device);
+        }
+
+        @Override
+        public void inquiryCompleted(int discType) {
+            completions.add(discType);
+        }
+
+        @Override
+        public void servicesDiscovered(int transID, List<BluetoothStack.Service> services) {
+            this.services.addAll(services);
+        }
+
+        @Override
+        public void serviceSearchCompleted(int transID, int respCode) {
+            completions.add(respCode);
+        }
+    }
+
+    @Test
+    public void discoverSearchConnectAndPut() throws Exception {
+        SimulatedAir air = new SimulatedAir(1, 0, 672, 0.0, 50, 3, 42);
+        SimulatedBluetoothStack a = new SimulatedBluetoothStack(air, air.nextAddress(), "a", 1, 1000);
+        SimulatedBluetoothStack b = new SimulatedBluetoothStack(air, air.nextAddress(), "b", 1, 1000);
+        b.setServiceAttribute(0x5555, "ra-b");
+        SessionNotifier notifier = b.openServer("btgoep://localhost:11111111111111111111111111111123;name=1M5");
+        b.setDiscoverable(true);
+
+        Recorder recorder = new Recorder();
+        assertTrue(a.startInquiry(recorder));
+        assertEquals(Integer.valueOf(DiscoveryListener.INQUIRY_COMPLETED), recorder.completions.poll(5, TimeUnit.SECONDS));
+        assertEquals(4, recorder.devices.size());
+        BluetoothStack.Device device = null;
+        for(BluetoothStack.Device d : recorder.devices) {
+            if(d.getBluetoothAddress().equals(b.address)) {
+                device = d;
+            }
+        }
+        assertNotNull(device);
+
+        a.searchServices(ATTRS, new UUID[]{ServiceClasses.getUUID(ServiceClasses.OBEX_OBJECT_PUSH)}, device, recorder);
+        assertEquals(Integer.valueOf(DiscoveryListener.SERVICE_SEARCH_COMPLETED), recorder.completions.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.services.size());
+        assertEquals("1M5", recorder.services.get(0).getAttributeValue(0x0100));
+        assertEquals("ra-b", recorder.services.get(0).getAttributeValue(0x5555));
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        Thread server = new Thread(() -> {
+            try {
+                notifier.acceptAndOpen(new ServerRequestHandler() {
+                    @Override
+                    public int onPut(Operation op) {
+                        try (InputStream is = op.openInputStream()) {
+                            ByteArrayOutputStream body = new ByteArrayOutputStream();
+                            int b;
+                            while ((b = is.read()) != -1) {
+                                body.write(b);
+                            }
+                            received.add(op.getReceivedHeaders().getHeader(HeaderSet.NAME) + ":" + new String(body.toByteArray(), StandardCharsets.UTF_8));
+                        } catch (IOException e) {
+                            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                        }
+                        return ResponseCodes.OBEX_HTTP_OK;
+                    }
+                });
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        ClientSession client = a.openClient(recorder.services.get(0).getConnectionURL());
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, client.connect(client.createHeaderSet()).getResponseCode());
+        HeaderSet headers = client.createHeaderSet();
+        headers.setHeader(HeaderSet.NAME, "a");
+        Operation put = client.put(headers);
+        try (OutputStream os = put.openOutputStream()) {
+            os.write("hello".getBytes(StandardCharsets.UTF_8));
+        }
+        put.close();
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, put.getResponseCode());
+        assertEquals("a:hello", received.poll(5, TimeUnit.SECONDS));
+        // Setting a path is not implemented by the handler but still proves the link is up
+        assertEquals(ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED, client.setPath(client.createHeaderSet(), false, false).getResponseCode());
+
+        client.close();
+        notifier.close();
+        a.shutdown();
+        b.shutdown();
+    }
+
+    @Test
+    public void passiveDevicesHaveNoRecordsAndPoweredOffStacksCannotBeReached() throws Exception {
+        SimulatedAir air = new SimulatedAir(0, 0, 672, 0.0, 10, 1, 7);
+        SimulatedBluetoothStack a = new SimulatedBluetoothStack(air, air.nextAddress(), "a", 1, 1000);
+        SimulatedBluetoothStack b = new SimulatedBluetoothStack(air, air.nextAddress(), "b", 1, 1000);
+        Recorder recorder = new Recorder();
+
+        a.searchServices(ATTRS, new UUID[0], air.device(DeviceRegistry.unpack(0x5A0000000001L)), recorder);
+        assertEquals(Integer.valueOf(DiscoveryListener.SERVICE_SEARCH_NO_RECORDS), recorder.completions.poll(5, TimeUnit.SECONDS));
+
+        b.setPowerOn(false);
+        try {
+            a.openClient("btgoep://" + b.address + ":1");
+            fail("Connected to a powered off stack");
+        } catch (IOException e) {
+            // expected
+        }
+        a.shutdown();
+        b.shutdown();
+    }
+
+    @Test
+    public void transferTimeFollowsBandwidth() throws IOException {
+        SimulatedAir air = new SimulatedAir(0, 100 * 1000, 672, 0.0, 10, 0, 1);
+        long start = System.nanoTime();
+        air.transmit(10 * 1000);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void persistentLossDropsTheLink() throws IOException {
+        new SimulatedAir(0, 0, 672, 0.99, 10, 0, 1).transmit(100 * 1000);
+    }
+}